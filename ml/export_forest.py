@@ -0,0 +1,95 @@
+import os
+import struct
+import sys
+
+from predict_ml import load_model, predict_energy
+
+# --- SCRIPT CONFIGURATION ---
+# Output read by the Java ForestPredictor (src/main/java/ml/ForestPredictor.java)
+EXPORT_FILENAME = 'rf_modele_energie.forest'
+MAGIC = b'RFX1'
+VERSION = 1
+
+
+def scaler_affine(scaler, n_features):
+    """
+    Returns (a, b) lists so that scaler.transform(x)[i] == x[i] * a[i] + b[i].
+    """
+    name = type(scaler).__name__
+    if name == 'StandardScaler':
+        mean = scaler.mean_ if scaler.with_mean else [0.0] * n_features
+        scale = scaler.scale_ if scaler.with_std else [1.0] * n_features
+        return [1.0 / s for s in scale], [-m / s for m, s in zip(mean, scale)]
+    if name == 'MinMaxScaler':
+        return list(scaler.scale_), list(scaler.min_)
+    if name == 'RobustScaler':
+        center = scaler.center_ if scaler.with_centering else [0.0] * n_features
+        scale = scaler.scale_ if scaler.with_scaling else [1.0] * n_features
+        return [1.0 / s for s in scale], [-c / s for c, s in zip(center, scale)]
+    raise ValueError(f"Unsupported scaler type: {name}")
+
+
+def write_tree(out, tree):
+    """
+    Writes one sklearn tree_ as flat node arrays: left, right, feature, threshold, value.
+    Leaves have left == right == -1.
+    """
+    out.write(struct.pack('>i', tree.node_count))
+    for i in range(tree.node_count):
+        out.write(struct.pack('>iiidd',
+                              int(tree.children_left[i]),
+                              int(tree.children_right[i]),
+                              int(tree.feature[i]),
+                              float(tree.threshold[i]),
+                              float(tree.value[i][0][0])))
+
+
+def write_utf(out, text):
+    data = text.encode('utf-8')
+    out.write(struct.pack('>H', len(data)))
+    out.write(data)
+
+
+def export(path):
+    model = load_model()
+    if model is None:
+        raise RuntimeError("model files could not be loaded")
+    rf_model, scaler, features = model
+    features = list(features)
+    a, b = scaler_affine(scaler, len(features))
+    trees = [e.tree_ for e in rf_model.estimators_] if hasattr(rf_model, 'estimators_') else [rf_model.tree_]
+
+    with open(path, 'wb') as out:
+        out.write(MAGIC)
+        out.write(struct.pack('>i', VERSION))
+        out.write(struct.pack('>i', len(features)))
+        for name, scale, offset in zip(features, a, b):
+            write_utf(out, name)
+            out.write(struct.pack('>dd', float(scale), float(offset)))
+        out.write(struct.pack('>i', len(trees)))
+        for tree in trees:
+            write_tree(out, tree)
+
+        # Reference predictions from the Python model, checked by Java on load.
+        # Same order as PredictionTable: ((heure * 7) + (jour - 1)) * 2 + weekend
+        out.write(struct.pack('>i', 24 * 7 * 2))
+        for heure in range(24):
+            for jour in range(1, 8):
+                for weekend in range(2):
+                    out.write(struct.pack('>d', float(predict_energy(heure, jour, weekend, model))))
+    return len(trees)
+
+
+def main():
+    script_dir = os.path.dirname(os.path.abspath(__file__))
+    path = os.path.join(script_dir, EXPORT_FILENAME)
+    try:
+        tree_count = export(path)
+        print(f"Exported {tree_count} trees to {path}")
+    except Exception as e:
+        print(f"FATAL ERROR: export failed: {e}", file=sys.stderr)
+        sys.exit(1)
+
+
+if __name__ == "__main__":
+    main()
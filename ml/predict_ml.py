@@ -10,31 +10,45 @@ SCALER_FILENAME = 'scaler_energie.pkl'
 FEATURES_FILENAME = 'features_energie.pkl'
 
 
-def predict_energy(heure, jour, weekend):
+def load_model():
+    """
+    Loads the model, scaler and feature list once.
+    Returns None if a file is missing or cannot be loaded.
+    """
+    # --- Robust File Path Logic ---
+    # This finds the files next to the script, no matter where you run it from.
+    script_dir = os.path.dirname(os.path.abspath(__file__))
+    model_path = os.path.join(script_dir, MODEL_FILENAME)
+    scaler_path = os.path.join(script_dir, SCALER_FILENAME)
+    features_path = os.path.join(script_dir, FEATURES_FILENAME)
+
+    # --- File Existence Check ---
+    for path in [model_path, scaler_path, features_path]:
+        if not os.path.exists(path):
+            # This is a critical error, print it to stderr for Java to see
+            print(f"FATAL ERROR: Required file not found at '{path}'", file=sys.stderr)
+            return None
+
+    try:
+        # --- Load Model and Scaler ---
+        return joblib.load(model_path), joblib.load(scaler_path), joblib.load(features_path)
+    except Exception as e:
+        print(f"ERROR while loading model: {e}", file=sys.stderr)
+        return None
+
+
+def predict_energy(heure, jour, weekend, model=None):
     """
     Predicts energy consumption using a pre-trained model.
     This function is designed to be highly robust.
     """
     try:
-        # --- Robust File Path Logic ---
-        # This finds the files next to the script, no matter where you run it from.
-        script_dir = os.path.dirname(os.path.abspath(__file__))
-        model_path = os.path.join(script_dir, MODEL_FILENAME)
-        scaler_path = os.path.join(script_dir, SCALER_FILENAME)
-        features_path = os.path.join(script_dir, FEATURES_FILENAME)
-
-        # --- File Existence Check ---
-        for path in [model_path, scaler_path, features_path]:
-            if not os.path.exists(path):
-                # This is a critical error, print it to stderr for Java to see
-                print(f"FATAL ERROR: Required file not found at '{path}'", file=sys.stderr)
-                # Fallback to simulation
-                return simulate_prediction(heure, jour, weekend)
-
-        # --- Load Model and Scaler ---
-        rf_model = joblib.load(model_path)
-        scaler = joblib.load(scaler_path)
-        features = joblib.load(features_path)
+        if model is None:
+            model = load_model()
+        if model is None:
+            # Fallback to simulation
+            return simulate_prediction(heure, jour, weekend)
+        rf_model, scaler, features = model
 
         # --- Prepare Data for Prediction ---
         input_data = pd.DataFrame([{
@@ -76,26 +90,62 @@ def simulate_prediction(heure, jour, weekend):
     return round(consumption, 1)
 
 
+def parse_inputs(heure, jour, weekend):
+    heure, jour, weekend = int(heure), int(jour), int(weekend)
+    if not (0 <= heure <= 23): raise ValueError("Hour must be between 0-23")
+    if not (1 <= jour <= 7): raise ValueError("Day must be between 1-7")
+    if weekend not in [0, 1]: raise ValueError("Weekend must be 0 or 1")
+    return heure, jour, weekend
+
+
+def serve():
+    """
+    Long-lived worker mode used by the Java MLWorkerPool.
+    The model is loaded once, then one request is answered per stdin line:
+      "<heure> <jour> <weekend>"  ->  "OK <prediction>" or "ERR <message>"
+      "PING"                      ->  "PONG"
+    "READY" is printed once the model is loaded.
+    """
+    model = load_model()
+    print("READY", flush=True)
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+        if line == "PING":
+            print("PONG", flush=True)
+            continue
+        if line == "QUIT":
+            break
+        try:
+            heure, jour, weekend = parse_inputs(*line.split())
+            if model is None:
+                prediction = simulate_prediction(heure, jour, weekend)
+            else:
+                prediction = predict_energy(heure, jour, weekend, model)
+            print(f"OK {prediction}", flush=True)
+        except Exception as e:
+            print(f"ERR {e}", flush=True)
+
+
 def main():
     """
     Main entry point. Parses arguments, calls prediction, and prints output.
     """
+    if len(sys.argv) > 1 and sys.argv[1] == "--serve":
+        serve()
+        return
+
     # Add a debug print to show exactly what arguments the script received
     print(f"DEBUG: Script received arguments: {sys.argv}", file=sys.stderr)
 
     # --- Argument Parsing and Validation ---
     if len(sys.argv) < 4:
-        print("Usage: python predict_ml.py <heure> <jour> <weekend>", file=sys.stderr)
+        print("Usage: python predict_ml.py <heure> <jour> <weekend> | --serve", file=sys.stderr)
         sys.exit(1)
 
     try:
-        heure = int(sys.argv[1])
-        jour = int(sys.argv[2])
-        weekend = int(sys.argv[3])
-
-        if not (0 <= heure <= 23): raise ValueError("Hour must be between 0-23")
-        if not (1 <= jour <= 7): raise ValueError("Day must be between 1-7")
-        if weekend not in [0, 1]: raise ValueError("Weekend must be 0 or 1")
+        heure, jour, weekend = parse_inputs(sys.argv[1], sys.argv[2], sys.argv[3])
 
         # --- Get Prediction ---
         prediction = predict_energy(heure, jour, weekend)
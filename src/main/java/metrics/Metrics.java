@@ -0,0 +1,161 @@
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide metrics: per-operation latency histograms and error counts,
+ * named counters and gauges, rendered in Prometheus text format.
+ *
+ * Usage around an operation:
+ * <pre>
+ *     long start = System.nanoTime();
+ *     try { ... } catch (Exception e) { Metrics.error("mongo.find"); throw e; }
+ *     finally { Metrics.time("mongo.find", start); }
+ * </pre>
+ * Operation names are "area.operation" (http./api/history, mongo.getAllDevices,
+ * soap.getThreshold, rmi.lookup, corba.getTime, ml.worker.predict, collector.tick).
+ */
+public final class Metrics {
+
+    public interface Gauge {
+        double value();
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private static final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    private static final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+    private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    static {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        gauge("jvm_heap_used_bytes", new Gauge() {
+            @Override
+            public double value() {
+                return memory.getHeapMemoryUsage().getUsed();
+            }
+        });
+        gauge("jvm_threads", new Gauge() {
+            @Override
+            public double value() {
+                return ManagementFactory.getThreadMXBean().getThreadCount();
+            }
+        });
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Records the time elapsed since startNanos (from System.nanoTime()).
+     */
+    public static void time(String operation, long startNanos) {
+        histogram(operation).recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public static void error(String operation) {
+        adder(errors, operation).increment();
+    }
+
+    public static void increment(String counter) {
+        adder(counters, counter).increment();
+    }
+
+    /**
+     * Registers (or replaces) a gauge read when /api/metrics is scraped.
+     */
+    public static void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public static LatencyHistogram histogram(String operation) {
+        LatencyHistogram histogram = latencies.get(operation);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = latencies.putIfAbsent(operation, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    private static LongAdder adder(ConcurrentMap<String, LongAdder> map, String name) {
+        LongAdder adder = map.get(name);
+        if (adder == null) {
+            LongAdder created = new LongAdder();
+            adder = map.putIfAbsent(name, created);
+            if (adder == null) adder = created;
+        }
+        return adder;
+    }
+
+    /* ------------------- Prometheus text format ------------------- */
+
+    public static String renderPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+
+        Map<String, LatencyHistogram> sortedLatencies = new TreeMap<String, LatencyHistogram>(latencies);
+        out.append("# HELP smarthome_operation_latency_seconds Operation latency.\n");
+        out.append("# TYPE smarthome_operation_latency_seconds summary\n");
+        for (Map.Entry<String, LatencyHistogram> entry : sortedLatencies.entrySet()) {
+            String op = label(entry.getKey());
+            LatencyHistogram histogram = entry.getValue();
+            for (double q : QUANTILES) {
+                out.append("smarthome_operation_latency_seconds{op=").append(op)
+                        .append(",quantile=\"").append(q).append("\"} ")
+                        .append(seconds(histogram.percentileNanos(q))).append('\n');
+            }
+            out.append("smarthome_operation_latency_seconds_sum{op=").append(op).append("} ")
+                    .append(seconds(histogram.getSumNanos())).append('\n');
+            out.append("smarthome_operation_latency_seconds_count{op=").append(op).append("} ")
+                    .append(histogram.getCount()).append('\n');
+        }
+
+        out.append("# HELP smarthome_operation_latency_max_seconds Slowest call since start.\n");
+        out.append("# TYPE smarthome_operation_latency_max_seconds gauge\n");
+        for (Map.Entry<String, LatencyHistogram> entry : sortedLatencies.entrySet()) {
+            out.append("smarthome_operation_latency_max_seconds{op=").append(label(entry.getKey())).append("} ")
+                    .append(seconds(entry.getValue().getMaxNanos())).append('\n');
+        }
+
+        out.append("# HELP smarthome_operation_errors_total Failed operations.\n");
+        out.append("# TYPE smarthome_operation_errors_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(errors).entrySet()) {
+            out.append("smarthome_operation_errors_total{op=").append(label(entry.getKey())).append("} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(counters).entrySet()) {
+            String name = "smarthome_" + entry.getKey() + "_total";
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+
+        for (Map.Entry<String, Gauge> entry : new TreeMap<String, Gauge>(gauges).entrySet()) {
+            String name = "smarthome_" + entry.getKey();
+            double value;
+            try {
+                value = entry.getValue().value();
+            } catch (Exception e) {
+                continue;
+            }
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(value).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static String label(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+}
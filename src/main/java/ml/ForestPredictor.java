@@ -0,0 +1,232 @@
+package ml;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process evaluation of the random forest exported by ml/export_forest.py.
+ *
+ * All trees are flattened into shared primitive arrays (left, right, feature,
+ * threshold, value), so a prediction is a few array walks with no allocation,
+ * no process fork and no output parsing. The scaler is applied as x * a + b.
+ * On load, the predictor is checked against the reference predictions that the
+ * exporter computed with the Python model.
+ */
+public class ForestPredictor {
+
+    public static final String EXPORT_PATH = "ml/rf_modele_energie.forest";
+
+    private static final int MAGIC = 0x52465831; // "RFX1"
+    private static final int VERSION = 1;
+    private static final double TOLERANCE = 0.05 + 1e-9;
+    private static final long EXPORT_TIMEOUT_S = 60;
+
+    /** Input slots in the order of predict(heure, jour, weekend). */
+    private static final String[] INPUT_NAMES = {"heure_jour", "jour_semaine", "weekend"};
+
+    private final double[] scaleA = new double[INPUT_NAMES.length];
+    private final double[] scaleB = new double[INPUT_NAMES.length];
+    private final int[] roots;
+    private final int[] left;
+    private final int[] right;
+    private final int[] feature;
+    private final double[] threshold;
+    private final double[] value;
+
+    private ForestPredictor(int[] roots, int[] left, int[] right, int[] feature,
+                            double[] threshold, double[] value) {
+        this.roots = roots;
+        this.left = left;
+        this.right = right;
+        this.feature = feature;
+        this.threshold = threshold;
+        this.value = value;
+    }
+
+    /**
+     * Loads the export from the project ml/ directory, or returns null when it is
+     * missing, older than the model files, unreadable or disagrees with Python.
+     */
+    public static ForestPredictor loadDefault() {
+        File projectDir = new File(System.getProperty("user.dir"));
+        File export = new File(projectDir, EXPORT_PATH);
+        if (!export.isFile()) return null;
+        File model = new File(projectDir, "ml/rf_modele_energie.pkl");
+        File scaler = new File(projectDir, "ml/scaler_energie.pkl");
+        if (export.lastModified() < model.lastModified() || export.lastModified() < scaler.lastModified()) {
+            System.err.println("Forest export is older than the model files, ignoring it.");
+            return null;
+        }
+        try {
+            return load(export);
+        } catch (IOException e) {
+            System.err.println("Could not load forest export: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Runs ml/export_forest.py once to (re)create the export from the model files.
+     */
+    public static boolean export() {
+        File projectDir = new File(System.getProperty("user.dir"));
+        String script = new File(projectDir, "ml/export_forest.py").getAbsolutePath();
+        for (String python : MLWorkerPool.pythonCandidates(null)) {
+            try {
+                ProcessBuilder pb = new ProcessBuilder(python, script);
+                pb.redirectErrorStream(true);
+                pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+                Process p = pb.start();
+                if (!p.waitFor(EXPORT_TIMEOUT_S, TimeUnit.SECONDS)) {
+                    p.destroyForcibly();
+                    continue;
+                }
+                if (p.exitValue() == 0) return true;
+            } catch (IOException e) {
+                // try the next candidate
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    public static ForestPredictor load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("not a forest export: " + file);
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("unsupported forest export version " + version);
+
+            // model column -> input slot
+            int featureCount = in.readInt();
+            int[] columnSlot = new int[featureCount];
+            double[] a = new double[featureCount];
+            double[] b = new double[featureCount];
+            for (int c = 0; c < featureCount; c++) {
+                columnSlot[c] = slotOf(in.readUTF());
+                a[c] = in.readDouble();
+                b[c] = in.readDouble();
+            }
+
+            int treeCount = in.readInt();
+            if (treeCount <= 0) throw new IOException("forest export has no trees");
+            int[] roots = new int[treeCount];
+            int[][] treeLeft = new int[treeCount][];
+            int[][] treeRight = new int[treeCount][];
+            int[][] treeFeature = new int[treeCount][];
+            double[][] treeThreshold = new double[treeCount][];
+            double[][] treeValue = new double[treeCount][];
+            int total = 0;
+            for (int t = 0; t < treeCount; t++) {
+                int nodes = in.readInt();
+                treeLeft[t] = new int[nodes];
+                treeRight[t] = new int[nodes];
+                treeFeature[t] = new int[nodes];
+                treeThreshold[t] = new double[nodes];
+                treeValue[t] = new double[nodes];
+                for (int n = 0; n < nodes; n++) {
+                    treeLeft[t][n] = in.readInt();
+                    treeRight[t][n] = in.readInt();
+                    treeFeature[t][n] = in.readInt();
+                    treeThreshold[t][n] = in.readDouble();
+                    treeValue[t][n] = in.readDouble();
+                }
+                roots[t] = total;
+                total += nodes;
+            }
+
+            // flatten: child indices become absolute, features become input slots
+            int[] left = new int[total];
+            int[] right = new int[total];
+            int[] feature = new int[total];
+            double[] threshold = new double[total];
+            double[] value = new double[total];
+            for (int t = 0; t < treeCount; t++) {
+                int offset = roots[t];
+                for (int n = 0; n < treeLeft[t].length; n++) {
+                    int i = offset + n;
+                    boolean leaf = treeLeft[t][n] < 0;
+                    left[i] = leaf ? -1 : offset + treeLeft[t][n];
+                    right[i] = leaf ? -1 : offset + treeRight[t][n];
+                    feature[i] = leaf ? -1 : columnSlot[treeFeature[t][n]];
+                    threshold[i] = treeThreshold[t][n];
+                    value[i] = treeValue[t][n];
+                }
+            }
+
+            ForestPredictor predictor = new ForestPredictor(roots, left, right, feature, threshold, value);
+            for (int c = 0; c < featureCount; c++) {
+                predictor.scaleA[columnSlot[c]] = a[c];
+                predictor.scaleB[columnSlot[c]] = b[c];
+            }
+
+            int referenceCount = in.readInt();
+            double[] reference = new double[referenceCount];
+            for (int i = 0; i < referenceCount; i++) reference[i] = in.readDouble();
+            predictor.verify(reference);
+            return predictor;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int slotOf(String featureName) throws IOException {
+        for (int i = 0; i < INPUT_NAMES.length; i++) {
+            if (INPUT_NAMES[i].equals(featureName)) return i;
+        }
+        throw new IOException("unknown model feature: " + featureName);
+    }
+
+    /**
+     * Compares every input against the Python predictions written by the exporter.
+     */
+    private void verify(double[] reference) throws IOException {
+        if (reference.length != PredictionTable.SIZE) {
+            throw new IOException("expected " + PredictionTable.SIZE + " reference predictions, got " + reference.length);
+        }
+        for (int heure = 0; heure < PredictionTable.HOURS; heure++) {
+            for (int jour = 1; jour <= PredictionTable.DAYS; jour++) {
+                for (int weekend = 0; weekend <= 1; weekend++) {
+                    double expected = reference[PredictionTable.index(heure, jour, weekend)];
+                    double actual = predict(heure, jour, weekend);
+                    if (Math.abs(expected - actual) > TOLERANCE) {
+                        throw new IOException("prediction mismatch for (" + heure + ", " + jour + ", " + weekend
+                                + "): java=" + actual + " python=" + expected);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Mean of the leaf values reached in every tree, rounded like predict_ml.py.
+     */
+    public double predict(int heure, int jour, int weekend) {
+        // sklearn compares features as float32
+        double x0 = (float) (heure * scaleA[0] + scaleB[0]);
+        double x1 = (float) (jour * scaleA[1] + scaleB[1]);
+        double x2 = (float) (weekend * scaleA[2] + scaleB[2]);
+
+        double sum = 0.0;
+        for (int t = 0; t < roots.length; t++) {
+            int n = roots[t];
+            while (left[n] >= 0) {
+                int f = feature[n];
+                double x = f == 0 ? x0 : (f == 1 ? x1 : x2);
+                n = x <= threshold[n] ? left[n] : right[n];
+            }
+            sum += value[n];
+        }
+        return Math.round(sum / roots.length * 10.0) / 10.0;
+    }
+
+    public int getTreeCount() {
+        return roots.length;
+    }
+}
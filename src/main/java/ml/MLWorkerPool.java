@@ -0,0 +1,334 @@
+package ml;
+
+import metrics.Metrics;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of long-lived "predict_ml.py --serve" processes.
+ * Each worker loads the model once and answers one prediction per line:
+ *   "heure jour weekend" -> "OK 42.5" / "ERR message", "PING" -> "PONG".
+ *
+ * Configuration (system properties):
+ *   smarthome.ml.workers    pool size (default 2)
+ *   smarthome.ml.python     python executable (default: python3, then python)
+ *   smarthome.ml.timeoutMs  per request timeout (default 2000)
+ */
+public class MLWorkerPool {
+
+    private static final String SCRIPT_PATH = "ml/predict_ml.py";
+    private static final long STARTUP_TIMEOUT_MS = 30000;
+    private static final long HEALTH_CHECK_PERIOD_S = 15;
+    private static final long RESTART_BACKOFF_MS = 30000;
+    private static final String EOF = "\u0000EOF";
+
+    private static MLWorkerPool shared;
+
+    private final int size;
+    private final long timeoutMs;
+    private final BlockingQueue<Worker> idle;
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private ScheduledExecutorService healthChecker;
+    private volatile String pythonCommand;
+    private volatile boolean running;
+
+    public MLWorkerPool(int size, long timeoutMs) {
+        this.size = Math.max(1, size);
+        this.timeoutMs = timeoutMs;
+        this.idle = new ArrayBlockingQueue<Worker>(this.size);
+    }
+
+    /**
+     * Process-wide pool, started on first use.
+     */
+    public static synchronized MLWorkerPool getShared() {
+        if (shared == null) {
+            shared = new MLWorkerPool(
+                    Integer.getInteger("smarthome.ml.workers", 2),
+                    Long.getLong("smarthome.ml.timeoutMs", 2000L));
+            shared.start();
+        }
+        return shared;
+    }
+
+    public static synchronized void shutdownShared() {
+        if (shared != null) {
+            shared.shutdown();
+            shared = null;
+        }
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        for (int i = 0; i < size; i++) {
+            Worker worker = new Worker(i);
+            try {
+                worker.start();
+            } catch (IOException e) {
+                System.err.println("ML worker " + i + " failed to start: " + e.getMessage());
+            }
+            workers.add(worker);
+            idle.offer(worker);
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor(daemonThreads("ml-health"));
+        healthChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkHealth();
+            }
+        }, HEALTH_CHECK_PERIOD_S, HEALTH_CHECK_PERIOD_S, TimeUnit.SECONDS);
+        System.out.println("ML worker pool started (" + aliveCount() + "/" + size + " workers alive)");
+    }
+
+    /**
+     * Returns the model prediction, or throws if no worker could answer.
+     * A worker that dies or times out is restarted once before giving up.
+     */
+    public double predict(int heure, int jour, int weekend) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return predictOnWorker(heure, jour, weekend);
+        } catch (IOException e) {
+            Metrics.error("ml.worker.predict");
+            throw e;
+        } finally {
+            Metrics.time("ml.worker.predict", start);
+        }
+    }
+
+    private double predictOnWorker(int heure, int jour, int weekend) throws IOException {
+        if (!running) throw new IOException("ML worker pool is not running");
+        Worker worker;
+        try {
+            worker = idle.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an ML worker");
+        }
+        if (worker == null) throw new IOException("No ML worker available");
+
+        String request = heure + " " + jour + " " + weekend;
+        try {
+            String reply;
+            try {
+                reply = worker.request(request, timeoutMs);
+            } catch (IOException first) {
+                worker.restart();
+                reply = worker.request(request, timeoutMs);
+            }
+            if (reply.startsWith("OK ")) {
+                return Double.parseDouble(reply.substring(3).trim());
+            }
+            throw new IOException("ML worker error: " + reply);
+        } finally {
+            idle.offer(worker);
+        }
+    }
+
+    private int aliveCount() {
+        int alive = 0;
+        synchronized (this) {
+            for (Worker w : workers) if (w.isAlive()) alive++;
+        }
+        return alive;
+    }
+
+    public synchronized void shutdown() {
+        running = false;
+        if (healthChecker != null) healthChecker.shutdownNow();
+        for (Worker w : workers) w.stop();
+        workers.clear();
+        idle.clear();
+    }
+
+    /**
+     * Pings idle workers and restarts the ones that died or stopped answering.
+     * Busy workers are skipped; they are checked on their next request.
+     */
+    private void checkHealth() {
+        int count = idle.size();
+        for (int i = 0; i < count && running; i++) {
+            Worker worker = idle.poll();
+            if (worker == null) return;
+            try {
+                if (!"PONG".equals(worker.request("PING", timeoutMs))) {
+                    throw new IOException("unexpected ping reply");
+                }
+            } catch (IOException e) {
+                try {
+                    worker.restart();
+                } catch (IOException restartFailed) {
+                    // python unavailable; try again on the next check
+                }
+            } finally {
+                idle.offer(worker);
+            }
+        }
+    }
+
+    private List<String> pythonCandidates() {
+        return pythonCandidates(pythonCommand);
+    }
+
+    /**
+     * Python executables to try, in order: the configured one, the one that
+     * already worked, then the usual names.
+     */
+    static List<String> pythonCandidates(String known) {
+        List<String> candidates = new ArrayList<String>();
+        String configured = System.getProperty("smarthome.ml.python");
+        if (configured != null && !configured.isEmpty()) {
+            candidates.add(configured);
+            return candidates;
+        }
+        if (known != null) {
+            candidates.add(known);
+            return candidates;
+        }
+        candidates.add("python3");
+        candidates.add("python");
+        return candidates;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /* ------------------- Worker process ------------------- */
+
+    private class Worker {
+        private final int id;
+        private Process process;
+        private BufferedWriter writer;
+        private long lastFailedStart;
+        // one queue per launched process: a dead process's reader can only write to its own
+        private BlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+
+        Worker(int id) {
+            this.id = id;
+        }
+
+        synchronized void start() throws IOException {
+            if (System.currentTimeMillis() - lastFailedStart < RESTART_BACKOFF_MS) {
+                throw new IOException("ML worker " + id + " failed recently, not restarting yet");
+            }
+            String scriptPath = new File(System.getProperty("user.dir"), SCRIPT_PATH).getAbsolutePath();
+            IOException lastError = new IOException("no python candidate");
+            for (String python : pythonCandidates()) {
+                try {
+                    launch(python, scriptPath);
+                    String ready = replies.poll(STARTUP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    if ("READY".equals(ready)) {
+                        pythonCommand = python;
+                        return;
+                    }
+                    lastError = new IOException(python + " did not report READY");
+                } catch (IOException e) {
+                    lastError = e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    lastError = new IOException("interrupted during startup");
+                    break;
+                }
+                stop();
+            }
+            lastFailedStart = System.currentTimeMillis();
+            throw lastError;
+        }
+
+        private void launch(String python, String scriptPath) throws IOException {
+            ProcessBuilder pb = new ProcessBuilder(python, scriptPath, "--serve");
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            final Process p = pb.start();
+            final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+            process = p;
+            replies = queue;
+            writer = new BufferedWriter(new OutputStreamWriter(p.getOutputStream(), StandardCharsets.UTF_8));
+
+            Thread readerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BufferedReader reader = new BufferedReader(
+                                new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            queue.offer(line.trim());
+                        }
+                    } catch (IOException ignored) {
+                        // process exited
+                    }
+                    queue.offer(EOF);
+                }
+            }, "ml-worker-" + id);
+            readerThread.setDaemon(true);
+            readerThread.start();
+        }
+
+        synchronized String request(String line, long timeout) throws IOException {
+            if (!isAlive()) throw new IOException("ML worker " + id + " is not running");
+            replies.clear();
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+            String reply;
+            try {
+                reply = replies.poll(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for ML worker " + id);
+            }
+            if (reply == null || EOF.equals(reply)) {
+                stop();
+                throw new IOException("ML worker " + id + (reply == null ? " timed out" : " exited"));
+            }
+            return reply;
+        }
+
+        synchronized void restart() throws IOException {
+            stop();
+            start();
+            System.out.println("ML worker " + id + " restarted");
+        }
+
+        synchronized boolean isAlive() {
+            return process != null && process.isAlive();
+        }
+
+        synchronized void stop() {
+            if (process == null) return;
+            try {
+                writer.write("QUIT");
+                writer.newLine();
+                writer.flush();
+            } catch (IOException ignored) {
+                // already gone
+            }
+            process.destroy();
+            process = null;
+        }
+    }
+}
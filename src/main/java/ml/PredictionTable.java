@@ -0,0 +1,217 @@
+package ml;
+
+import metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Precomputed predictions for the whole model input space:
+ * 24 hours x 7 days x weekend flag = 336 entries.
+ *
+ * The table is filled once in the background, and filled again when one of
+ * the model files changes. Every prediction after that is an array lookup.
+ * Shared by the REST and SOAP paths.
+ *
+ * Entries come from the in-process ForestPredictor when the model export is
+ * available (it is re-exported when stale), otherwise from the Python workers.
+ */
+public class PredictionTable {
+
+    public static final int HOURS = 24;
+    public static final int DAYS = 7;
+    public static final int SIZE = HOURS * DAYS * 2;
+
+    private static final String[] MODEL_FILES = {
+            "ml/rf_modele_energie.pkl", "ml/scaler_energie.pkl", "ml/features_energie.pkl",
+            ForestPredictor.EXPORT_PATH
+    };
+    private static final long WATCH_PERIOD_S = 30;
+
+    private static PredictionTable shared;
+
+    private volatile double[] table;
+    private volatile ForestPredictor forest;
+    private volatile boolean degraded;
+    private long modelStamp;
+    private ScheduledExecutorService watcher;
+
+    public static synchronized PredictionTable getShared() {
+        if (shared == null) {
+            shared = new PredictionTable();
+            shared.start();
+        }
+        return shared;
+    }
+
+    public static synchronized void shutdownShared() {
+        if (shared != null) {
+            shared.stop();
+            shared = null;
+        }
+        MLWorkerPool.shutdownShared();
+    }
+
+    /**
+     * Fills the table in the background and starts watching the model files.
+     */
+    public synchronized void start() {
+        if (watcher != null) return;
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "prediction-table");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshIfNeeded();
+            }
+        }, 0, WATCH_PERIOD_S, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    public boolean isReady() {
+        return table != null;
+    }
+
+    /**
+     * Prediction for the given inputs. Out-of-range inputs are rejected by the
+     * model, so they get the simulated value, as before.
+     */
+    public double predict(int heure, int jour, int weekend) {
+        Metrics.increment("predictions");
+        if (!inRange(heure, jour, weekend)) {
+            return simulatePrediction(heure, jour, weekend);
+        }
+        double[] current = table;
+        if (current != null) {
+            return current[index(heure, jour, weekend)];
+        }
+        // Not filled yet: ask the model directly
+        ForestPredictor currentForest = forest;
+        if (currentForest != null) {
+            return currentForest.predict(heure, jour, weekend);
+        }
+        try {
+            return MLWorkerPool.getShared().predict(heure, jour, weekend);
+        } catch (IOException e) {
+            return simulatePrediction(heure, jour, weekend);
+        }
+    }
+
+    private void refreshIfNeeded() {
+        try {
+            long stamp = currentModelStamp();
+            boolean modelChanged = table != null && stamp != modelStamp;
+            if (table != null && !modelChanged && !degraded) return;
+
+            if (modelChanged) {
+                // workers still hold the old model in memory
+                MLWorkerPool.shutdownShared();
+            }
+            long start = System.currentTimeMillis();
+            ForestPredictor loaded = ForestPredictor.loadDefault();
+            if (loaded == null && ForestPredictor.export()) {
+                loaded = ForestPredictor.loadDefault();
+            }
+            forest = loaded;
+
+            double[] filled = new double[SIZE];
+            long fillStart = System.nanoTime();
+            boolean missing = loaded != null ? fill(filled, loaded) : fill(filled);
+            Metrics.time("ml.table.fill", fillStart);
+            // the export may have just been rewritten
+            modelStamp = currentModelStamp();
+            degraded = missing;
+            table = filled;
+            System.out.println("Prediction table " + (modelChanged ? "reloaded" : "filled") + " in "
+                    + (System.currentTimeMillis() - start) + " ms from "
+                    + (loaded != null ? "Java forest (" + loaded.getTreeCount() + " trees)" : "Python workers")
+                    + (missing ? " (some entries simulated, will retry)" : ""));
+            if (!missing) {
+                // every entry comes from the model; the workers are no longer needed
+                MLWorkerPool.shutdownShared();
+            }
+        } catch (Exception e) {
+            System.err.println("Prediction table refresh failed: " + e.getMessage());
+        }
+    }
+
+    private boolean fill(double[] target, ForestPredictor source) {
+        for (int heure = 0; heure < HOURS; heure++) {
+            for (int jour = 1; jour <= DAYS; jour++) {
+                for (int weekend = 0; weekend <= 1; weekend++) {
+                    target[index(heure, jour, weekend)] = source.predict(heure, jour, weekend);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true when at least one entry had to be simulated.
+     */
+    private boolean fill(double[] target) {
+        boolean missing = false;
+        MLWorkerPool pool = MLWorkerPool.getShared();
+        for (int heure = 0; heure < HOURS; heure++) {
+            for (int jour = 1; jour <= DAYS; jour++) {
+                for (int weekend = 0; weekend <= 1; weekend++) {
+                    int i = index(heure, jour, weekend);
+                    try {
+                        target[i] = pool.predict(heure, jour, weekend);
+                    } catch (IOException e) {
+                        target[i] = simulatePrediction(heure, jour, weekend);
+                        missing = true;
+                    }
+                }
+            }
+        }
+        return missing;
+    }
+
+    private static long currentModelStamp() {
+        long stamp = 0;
+        String projectDir = System.getProperty("user.dir");
+        for (String name : MODEL_FILES) {
+            stamp = 31 * stamp + new File(projectDir, name).lastModified();
+        }
+        return stamp;
+    }
+
+    static boolean inRange(int heure, int jour, int weekend) {
+        return heure >= 0 && heure < HOURS && jour >= 1 && jour <= DAYS && (weekend == 0 || weekend == 1);
+    }
+
+    static int index(int heure, int jour, int weekend) {
+        return ((heure * DAYS) + (jour - 1)) * 2 + weekend;
+    }
+
+    /**
+     * Same rules as simulate_prediction() in predict_ml.py.
+     */
+    public static double simulatePrediction(int heure, int jour, int weekend) {
+        double base = 35.0;
+        if (0 <= heure && heure < 6) base -= 10;
+        else if (6 <= heure && heure < 9) base += 15;
+        else if (9 <= heure && heure < 17) base += 5;
+        else if (17 <= heure && heure < 22) base += 25;
+        if (weekend == 1 && 9 <= heure && heure < 17) base += 10;
+        base += (jour % 3) * 2;
+        return base;
+    }
+}
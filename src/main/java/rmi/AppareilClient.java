@@ -0,0 +1,91 @@
+package rmi;
+
+import metrics.Metrics;
+
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client side of AppareilService with a cached stub.
+ *
+ * The registry is looked up once; the stub is reused for every call. When a
+ * call fails with a RemoteException (server restarted, connection refused,
+ * stale object), the stub is dropped, looked up again and the call retried
+ * once. Each remote call is timed in Metrics as "rmi.&lt;operation&gt;".
+ */
+public class AppareilClient {
+
+    private final String url;
+    private volatile AppareilInterface stub;
+
+    public AppareilClient(String url) {
+        this.url = url;
+    }
+
+    /**
+     * One remote call for all listed devices; returns the outcome per name.
+     */
+    public Map<String, Boolean> commanderAppareils(List<String> noms, boolean allumer) throws Exception {
+        long start = System.nanoTime();
+        try {
+            try {
+                return stub().commanderAppareils(noms, allumer);
+            } catch (RemoteException e) {
+                return reconnect().commanderAppareils(noms, allumer);
+            }
+        } catch (Exception e) {
+            Metrics.error("rmi.commanderAppareils");
+            throw e;
+        } finally {
+            Metrics.time("rmi.commanderAppareils", start);
+        }
+    }
+
+    /**
+     * True when the service answers a ping, through the cached stub or a
+     * fresh lookup. When it does not, the stub is dropped.
+     */
+    public boolean isReachable() {
+        try {
+            try {
+                stub().ping();
+            } catch (RemoteException e) {
+                reconnect().ping();
+            }
+            return true;
+        } catch (Exception e) {
+            invalidate();
+            return false;
+        }
+    }
+
+    public void invalidate() {
+        stub = null;
+    }
+
+    private AppareilInterface stub() throws Exception {
+        AppareilInterface current = stub;
+        return current != null ? current : lookup();
+    }
+
+    private AppareilInterface reconnect() throws Exception {
+        invalidate();
+        return lookup();
+    }
+
+    private synchronized AppareilInterface lookup() throws Exception {
+        if (stub != null) return stub;
+        long start = System.nanoTime();
+        try {
+            stub = (AppareilInterface) Naming.lookup(url);
+            return stub;
+        } catch (Exception e) {
+            Metrics.error("rmi.lookup");
+            throw e;
+        } finally {
+            Metrics.time("rmi.lookup", start);
+        }
+    }
+}
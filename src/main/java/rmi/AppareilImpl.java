@@ -5,18 +5,64 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class AppareilImpl extends UnicastRemoteObject implements AppareilInterface {
 
+    // état connu de chaque appareil commandé (true = allumé)
+    private final ConcurrentMap<String, Boolean> etats = new ConcurrentHashMap<String, Boolean>();
+
     public AppareilImpl() throws RemoteException {
         super();
     }
 
     @Override
     public void eteindre() throws RemoteException {
+        for (String nom : etats.keySet()) {
+            etats.put(nom, false);
+        }
         System.out.println("RMI: Appareil éteint !");
     }
 
+    @Override
+    public void ping() {
+    }
+
+    @Override
+    public boolean eteindreAppareil(String nom) throws RemoteException {
+        return commander(nom, false);
+    }
+
+    @Override
+    public boolean allumerAppareil(String nom) throws RemoteException {
+        return commander(nom, true);
+    }
+
+    @Override
+    public Map<String, Boolean> commanderAppareils(List<String> noms, boolean allumer) throws RemoteException {
+        Map<String, Boolean> resultats = new HashMap<String, Boolean>();
+        if (noms == null) return resultats;
+        for (String nom : noms) {
+            if (nom == null) continue;
+            boolean ok = !nom.isEmpty();
+            if (ok) etats.put(nom, allumer);
+            resultats.put(nom, ok);
+        }
+        System.out.println("RMI: " + resultats.size() + " appareil(s) " + (allumer ? "allumé(s)" : "éteint(s)"));
+        return resultats;
+    }
+
+    private boolean commander(String nom, boolean allumer) {
+        if (nom == null || nom.isEmpty()) return false;
+        etats.put(nom, allumer);
+        System.out.println("RMI: " + nom + (allumer ? " allumé" : " éteint"));
+        return true;
+    }
+
     public static void main(String[] args) {
         try {
             // Try to get existing registry, else create one
@@ -2,6 +2,24 @@ package rmi;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+
 public interface AppareilInterface extends Remote {
     void eteindre() throws RemoteException;
+
+    /** Does nothing; a cheap call to check that the service answers. */
+    void ping() throws RemoteException;
+
+    /** Turns one device off. Returns false if the command was not applied. */
+    boolean eteindreAppareil(String nom) throws RemoteException;
+
+    /** Turns one device on. Returns false if the command was not applied. */
+    boolean allumerAppareil(String nom) throws RemoteException;
+
+    /**
+     * Turns every listed device on or off in one remote call.
+     * Returns the outcome per device name.
+     */
+    Map<String, Boolean> commanderAppareils(List<String> noms, boolean allumer) throws RemoteException;
 }
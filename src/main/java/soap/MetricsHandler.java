@@ -0,0 +1,57 @@
+package soap;
+
+import metrics.Metrics;
+
+import javax.xml.namespace.QName;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.handler.soap.SOAPHandler;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Times every SOAP @WebMethod call, from the inbound request to the outbound
+ * response or fault, as "soap.&lt;operation&gt;" in Metrics.
+ */
+public class MetricsHandler implements SOAPHandler<SOAPMessageContext> {
+
+    private static final String START_NANOS = "smarthome.metrics.start";
+
+    @Override
+    public boolean handleMessage(SOAPMessageContext context) {
+        if (isOutbound(context)) {
+            record(context, false);
+        } else {
+            context.put(START_NANOS, System.nanoTime());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean handleFault(SOAPMessageContext context) {
+        record(context, true);
+        return true;
+    }
+
+    @Override
+    public void close(MessageContext context) {
+    }
+
+    @Override
+    public Set<QName> getHeaders() {
+        return Collections.emptySet();
+    }
+
+    private static void record(SOAPMessageContext context, boolean fault) {
+        Object start = context.get(START_NANOS);
+        if (!(start instanceof Long)) return;
+        QName operation = (QName) context.get(MessageContext.WSDL_OPERATION);
+        String name = "soap." + (operation != null ? operation.getLocalPart() : "unknown");
+        if (fault) Metrics.error(name);
+        Metrics.time(name, (Long) start);
+    }
+
+    private static boolean isOutbound(MessageContext context) {
+        return Boolean.TRUE.equals(context.get(MessageContext.MESSAGE_OUTBOUND_PROPERTY));
+    }
+}
@@ -1,9 +1,13 @@
 package soap;
 
 import javax.xml.ws.Endpoint;
+import javax.xml.ws.handler.Handler;
 import soap.service.EnergyManagementService;
 import soap.service.DeviceManagementService;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 public class SoapServicePublisher {
 
@@ -21,13 +25,13 @@ public class SoapServicePublisher {
 
             // Publish Energy Management Service
             System.out.print("Publishing Energy Management Service... ");
-            energyEndpoint = Endpoint.publish(ENERGY_SERVICE_URL, new EnergyManagementService());
+            energyEndpoint = publishTimed(ENERGY_SERVICE_URL, new EnergyManagementService());
             System.out.println("✓");
             System.out.println("   WSDL: " + ENERGY_SERVICE_URL + "?wsdl");
 
             // Publish Device Management Service
             System.out.print("Publishing Device Management Service... ");
-            deviceEndpoint = Endpoint.publish(DEVICE_SERVICE_URL, new DeviceManagementService());
+            deviceEndpoint = publishTimed(DEVICE_SERVICE_URL, new DeviceManagementService());
             System.out.println("✓");
             System.out.println("   WSDL: " + DEVICE_SERVICE_URL + "?wsdl");
 
@@ -49,6 +53,19 @@ public class SoapServicePublisher {
         }
     }
 
+    /**
+     * Publishes the service with MetricsHandler in its handler chain.
+     */
+    @SuppressWarnings("rawtypes")
+    private static Endpoint publishTimed(String url, Object service) {
+        Endpoint endpoint = Endpoint.create(service);
+        List<Handler> chain = new ArrayList<Handler>(endpoint.getBinding().getHandlerChain());
+        chain.add(new MetricsHandler());
+        endpoint.getBinding().setHandlerChain(chain);
+        endpoint.publish(url);
+        return endpoint;
+    }
+
     public static void stopServices() {
         System.out.println("\nStopping SOAP services...");
 
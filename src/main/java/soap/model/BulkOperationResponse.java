@@ -0,0 +1,72 @@
+package soap.model;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of a bulk device operation: the devices it changed, in their new state.
+ */
+@XmlRootElement(name = "BulkOperationResponse")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class BulkOperationResponse implements Serializable {
+
+    @XmlElement(required = true)
+    private boolean success;
+
+    @XmlElement(required = true)
+    private String message;
+
+    @XmlElement(required = true)
+    private int updatedCount;
+
+    @XmlElement(name = "device")
+    private List<DeviceInfo> devices;
+
+    public BulkOperationResponse() {
+        devices = new ArrayList<DeviceInfo>();
+    }
+
+    public BulkOperationResponse(boolean success, String message, List<DeviceInfo> devices) {
+        this.success = success;
+        this.message = message;
+        this.devices = devices;
+        this.updatedCount = devices.size();
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    public int getUpdatedCount() {
+        return updatedCount;
+    }
+
+    public void setUpdatedCount(int updatedCount) {
+        this.updatedCount = updatedCount;
+    }
+
+    public List<DeviceInfo> getDevices() {
+        return devices;
+    }
+
+    public void setDevices(List<DeviceInfo> devices) {
+        this.devices = devices;
+    }
+}
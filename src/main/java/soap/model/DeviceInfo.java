@@ -19,6 +19,9 @@ public class DeviceInfo implements Serializable {
     @XmlElement(required = true)
     private boolean isOn;
 
+    @XmlElement
+    private String group;
+
     public DeviceInfo() {}
 
     public DeviceInfo(String name, double baseConsumption, boolean isOn) {
@@ -38,6 +41,9 @@ public class DeviceInfo implements Serializable {
     public boolean isOn() { return isOn; }
     public void setOn(boolean on) { isOn = on; }
 
+    public String getGroup() { return group; }
+    public void setGroup(String group) { this.group = group; }
+
     @XmlRootElement(name = "PredictionRequest")
     @XmlAccessorType(XmlAccessType.FIELD)
     static
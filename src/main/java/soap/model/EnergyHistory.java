@@ -18,6 +18,10 @@ public class EnergyHistory implements Serializable {
     @XmlElement(required = true)
     private double threshold;
 
+    // raw, minute, hour or day
+    @XmlElement
+    private String resolution;
+
     public EnergyHistory() {
         records = new ArrayList<EnergyData>();
     }
@@ -27,4 +31,7 @@ public class EnergyHistory implements Serializable {
 
     public double getThreshold() { return threshold; }
     public void setThreshold(double threshold) { this.threshold = threshold; }
+
+    public String getResolution() { return resolution; }
+    public void setResolution(String resolution) { this.resolution = resolution; }
 }
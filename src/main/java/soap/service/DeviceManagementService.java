@@ -5,19 +5,22 @@ import javax.jws.WebMethod;
 import javax.jws.WebParam;
 import javax.jws.soap.SOAPBinding;
 
+import soap.model.BulkOperationResponse;
 import soap.model.DeviceInfo;
 import soap.model.DeviceListResponse;
 import soap.model.DeviceOperationResponse;
 
-import web.MongoDBManager;
+import web.Device;
+import web.EventStream;
+import web.SmartHomeCore;
+import web.StorageBackend;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.rmi.Naming;
 
 /**
- * Device Management SOAP Web Service (Java 8 compatible) - MongoDB-backed
+ * Device Management SOAP Web Service (Java 8 compatible) - backed by the shared StorageBackend
  */
 @WebService(
         name = "DeviceManagementService",
@@ -32,32 +35,41 @@ import java.rmi.Naming;
 )
 public class DeviceManagementService {
 
-    private static final int RMI_PORT = 1100;
-
-    // Single shared DB manager for this SOAP service
-    private final MongoDBManager db;
+    // Same storage and device registry as the REST server
+    private final SmartHomeCore core;
+    private final StorageBackend db;
 
     public DeviceManagementService() {
-        db = new MongoDBManager();
-        db.init();
-        db.seedDefaultDevicesIfEmpty();
+        core = SmartHomeCore.getShared();
+        db = core.getStorage();
+    }
+
+    private static DeviceInfo mapToDeviceInfo(Device device) {
+        DeviceInfo info = new DeviceInfo(device.getName(), device.getBaseConsumption(), device.isOn());
+        info.setGroup(device.getGroup());
+        return info;
+    }
+
+    private BulkOperationResponse bulkResponse(List<Device> changed, boolean isOn) {
+        core.powerChanged(changed);
+        List<DeviceInfo> list = new ArrayList<DeviceInfo>();
+        for (Device device : changed) {
+            list.add(mapToDeviceInfo(device));
+        }
+        return new BulkOperationResponse(true, list.size() + " device(s) turned " + (isOn ? "ON" : "OFF"), list);
     }
 
-    private static DeviceInfo mapToDeviceInfo(Map<String, Object> doc) {
-        String name = (String) doc.get("name");
-        Object bc = doc.get("baseConsumption");
-        double baseConsumption = (bc instanceof Number) ? ((Number) bc).doubleValue() : 0.0;
-        Object on = doc.get("isOn");
-        boolean isOn = (on instanceof Boolean) ? (Boolean) on : false;
-        return new DeviceInfo(name, baseConsumption, isOn);
+    private static void publish(DeviceInfo device) {
+        if (device != null) {
+            EventStream.getShared().publishDevice(device.getName(), device.getBaseConsumption(), device.isOn());
+        }
     }
 
     @WebMethod(operationName = "getAllDevices")
     public DeviceListResponse getAllDevices() {
-        List<Map<String, Object>> docs = db.getAllDevices();
         List<DeviceInfo> list = new ArrayList<DeviceInfo>();
-        for (Map<String, Object> doc : docs) {
-            list.add(mapToDeviceInfo(doc));
+        for (Device device : db.getAllDevices()) {
+            list.add(mapToDeviceInfo(device));
         }
         DeviceListResponse response = new DeviceListResponse();
         response.setDevices(list);
@@ -67,21 +79,16 @@ public class DeviceManagementService {
 
     @WebMethod(operationName = "getDeviceByName")
     public DeviceInfo getDeviceByName(@WebParam(name = "deviceName") String deviceName) {
-        List<Map<String, Object>> all = db.getAllDevices();
-        for (Map<String, Object> doc : all) {
-            String name = (String) doc.get("name");
-            if (name != null && name.equalsIgnoreCase(deviceName)) {
-                return mapToDeviceInfo(doc);
-            }
-        }
-        return null;
+        Device device = db.findDeviceIgnoreCase(deviceName);
+        return device != null ? mapToDeviceInfo(device) : null;
     }
 
     @WebMethod(operationName = "toggleDevice")
     public DeviceOperationResponse toggleDevice(@WebParam(name = "deviceName") String deviceName) {
-        boolean ok = db.toggleDevicePower(deviceName);
-        if (ok) {
-            DeviceInfo device = getDeviceByName(deviceName);
+        Device updated = db.toggleDevicePower(deviceName);
+        if (updated != null) {
+            core.powerChanged(Collections.singletonList(updated));
+            DeviceInfo device = mapToDeviceInfo(updated);
             return new DeviceOperationResponse(true,
                     deviceName + " toggled successfully", device);
         }
@@ -90,9 +97,10 @@ public class DeviceManagementService {
 
     @WebMethod(operationName = "turnOnDevice")
     public DeviceOperationResponse turnOnDevice(@WebParam(name = "deviceName") String deviceName) {
-        boolean ok = db.setDevicePower(deviceName, true);
-        if (ok) {
-            DeviceInfo device = getDeviceByName(deviceName);
+        Device updated = db.setDevicePower(deviceName, true);
+        if (updated != null) {
+            core.powerChanged(Collections.singletonList(updated));
+            DeviceInfo device = mapToDeviceInfo(updated);
             return new DeviceOperationResponse(true, deviceName + " turned ON", device);
         }
         return new DeviceOperationResponse(false, "Device not found: " + deviceName, null);
@@ -100,9 +108,10 @@ public class DeviceManagementService {
 
     @WebMethod(operationName = "turnOffDevice")
     public DeviceOperationResponse turnOffDevice(@WebParam(name = "deviceName") String deviceName) {
-        boolean ok = db.setDevicePower(deviceName, false);
-        if (ok) {
-            DeviceInfo device = getDeviceByName(deviceName);
+        Device updated = db.setDevicePower(deviceName, false);
+        if (updated != null) {
+            core.powerChanged(Collections.singletonList(updated));
+            DeviceInfo device = mapToDeviceInfo(updated);
             return new DeviceOperationResponse(true, deviceName + " turned OFF", device);
         }
         return new DeviceOperationResponse(false, "Device not found: " + deviceName, null);
@@ -111,16 +120,8 @@ public class DeviceManagementService {
     @WebMethod(operationName = "shutdownAllDevicesRMI")
     public DeviceOperationResponse shutdownAllDevicesRMI() {
         try {
-            rmi.AppareilInterface appareil = (rmi.AppareilInterface)
-                    Naming.lookup("rmi://localhost:" + RMI_PORT + "/AppareilService");
-            appareil.eteindre();
-
-            // Turn off all devices in DB
-            List<Map<String, Object>> all = db.getAllDevices();
-            for (Map<String, Object> doc : all) {
-                String name = (String) doc.get("name");
-                if (name != null) db.setDevicePower(name, false);
-            }
+            // RMI command, then all devices off in DB
+            core.shutdownAllDevices();
             return new DeviceOperationResponse(true,
                     "All devices shut down via RMI successfully", null);
         } catch (Exception e) {
@@ -129,6 +130,65 @@ public class DeviceManagementService {
         }
     }
 
+    @WebMethod(operationName = "setDevicesPower")
+    public BulkOperationResponse setDevicesPower(
+            @WebParam(name = "deviceName") List<String> deviceNames,
+            @WebParam(name = "isOn") boolean isOn) {
+        if (deviceNames == null || deviceNames.isEmpty()) {
+            return new BulkOperationResponse(false, "No device names given", new ArrayList<DeviceInfo>());
+        }
+        return bulkResponse(db.setDevicesPower(deviceNames, isOn), isOn);
+    }
+
+    @WebMethod(operationName = "setGroupPower")
+    public BulkOperationResponse setGroupPower(
+            @WebParam(name = "group") String group,
+            @WebParam(name = "isOn") boolean isOn) {
+        return bulkResponse(db.setGroupPower(group, isOn), isOn);
+    }
+
+    @WebMethod(operationName = "setAllDevicesPower")
+    public BulkOperationResponse setAllDevicesPower(@WebParam(name = "isOn") boolean isOn) {
+        return bulkResponse(db.setAllDevicesPower(isOn), isOn);
+    }
+
+    /**
+     * Devices matching every given criterion (omitted ones are ignored).
+     */
+    @WebMethod(operationName = "setDevicesPowerByFilter")
+    public BulkOperationResponse setDevicesPowerByFilter(
+            @WebParam(name = "currentlyOn") Boolean currentlyOn,
+            @WebParam(name = "group") String group,
+            @WebParam(name = "minConsumption") Double minConsumption,
+            @WebParam(name = "maxConsumption") Double maxConsumption,
+            @WebParam(name = "isOn") boolean isOn) {
+        return bulkResponse(db.setDevicesPowerWhere(currentlyOn, group, minConsumption, maxConsumption, isOn), isOn);
+    }
+
+    @WebMethod(operationName = "setDeviceGroup")
+    public DeviceOperationResponse setDeviceGroup(
+            @WebParam(name = "deviceName") String deviceName,
+            @WebParam(name = "group") String group) {
+        Device updated = db.setDeviceGroup(deviceName, group);
+        if (updated != null) {
+            return new DeviceOperationResponse(true, deviceName + " moved to group " + group,
+                    mapToDeviceInfo(updated));
+        }
+        return new DeviceOperationResponse(false, "Device not found: " + deviceName, null);
+    }
+
+    @WebMethod(operationName = "getDevicesByGroup")
+    public DeviceListResponse getDevicesByGroup(@WebParam(name = "group") String group) {
+        List<DeviceInfo> list = new ArrayList<DeviceInfo>();
+        for (Device device : db.getDevicesByGroup(group)) {
+            list.add(mapToDeviceInfo(device));
+        }
+        DeviceListResponse response = new DeviceListResponse();
+        response.setDevices(list);
+        response.setTotalCount(list.size());
+        return response;
+    }
+
     @WebMethod(operationName = "getTotalConsumption")
     public double getTotalConsumption() {
         return db.getTotalConsumptionForOnDevices();
@@ -136,10 +196,9 @@ public class DeviceManagementService {
 
     @WebMethod(operationName = "getDevicesByStatus")
     public DeviceListResponse getDevicesByStatus(@WebParam(name = "isOn") boolean isOn) {
-        List<Map<String, Object>> docs = db.getDevicesByStatus(isOn);
         List<DeviceInfo> list = new ArrayList<DeviceInfo>();
-        for (Map<String, Object> doc : docs) {
-            list.add(mapToDeviceInfo(doc));
+        for (Device device : db.getDevicesByStatus(isOn)) {
+            list.add(mapToDeviceInfo(device));
         }
         DeviceListResponse response = new DeviceListResponse();
         response.setDevices(list);
@@ -157,6 +216,7 @@ public class DeviceManagementService {
         if (!inserted) {
             return new DeviceOperationResponse(false, "Device already exists: " + name, null);
         }
+        EventStream.getShared().publishDevice(name, baseConsumption, isOn);
         return new DeviceOperationResponse(true, "Device added successfully: " + name,
                 new DeviceInfo(name, baseConsumption, isOn));
     }
@@ -165,6 +225,7 @@ public class DeviceManagementService {
     public DeviceOperationResponse removeDevice(@WebParam(name = "deviceName") String deviceName) {
         boolean ok = db.removeDevice(deviceName);
         if (ok) {
+            EventStream.getShared().publishDeviceRemoved(deviceName);
             return new DeviceOperationResponse(true, "Device removed: " + deviceName, null);
         }
         return new DeviceOperationResponse(false, "Device not found: " + deviceName, null);
@@ -175,9 +236,10 @@ public class DeviceManagementService {
             @WebParam(name = "deviceName") String deviceName,
             @WebParam(name = "newConsumption") double newConsumption) {
 
-        boolean ok = db.updateDeviceConsumption(deviceName, newConsumption);
-        if (ok) {
-            DeviceInfo device = getDeviceByName(deviceName);
+        Device updated = db.updateDeviceConsumption(deviceName, newConsumption);
+        if (updated != null) {
+            DeviceInfo device = mapToDeviceInfo(updated);
+            publish(device);
             return new DeviceOperationResponse(true,
                     "Consumption updated for " + deviceName, device);
         }
@@ -5,11 +5,12 @@ import javax.jws.WebMethod;
 import javax.jws.WebParam;
 import javax.jws.soap.SOAPBinding;
 import soap.model.*;
-import web.MongoDBManager;
+import web.EnergyRecord;
+import web.EnergyRollups;
+import web.EventStream;
+import web.SmartHomeCore;
+import web.StorageBackend;
 import corba.SmartHome.*;
-import org.omg.CORBA.ORB;
-import org.omg.CosNaming.*;
-import java.rmi.Naming;
 import java.util.*;
 
 /**
@@ -29,26 +30,14 @@ import java.util.*;
 )
 public class EnergyManagementService {
 
-    private static final MongoDBManager databaseManager = new MongoDBManager();
-    private static ORB orb;
-    private static Temps tempsService;
-    private static double threshold = 70.0;
-    private static final int CORBA_PORT = 1050;
-    private static final int RMI_PORT = 1100;
-
-    static {
-        try {
-            databaseManager.init();
-            initCORBA();
-        } catch (Exception e) {
-            System.err.println("Failed to initialize services: " + e.getMessage());
-        }
-    }
+    // Same storage, time source and threshold as the REST server
+    private final SmartHomeCore core = SmartHomeCore.getShared();
+    private final StorageBackend databaseManager = core.getStorage();
 
     @WebMethod(operationName = "getRealtimeData")
     public EnergyData getRealtimeData() {
         try {
-            Map<String, Object> latestRecord = databaseManager.getLatestEnergyRecord();
+            EnergyRecord latestRecord = core.getLatestEnergyRecord();
             if (latestRecord == null) return null;
             return mapToEnergyData(latestRecord);
         } catch (Exception e) {
@@ -59,19 +48,37 @@ public class EnergyManagementService {
 
     @WebMethod(operationName = "getEnergyHistory")
     public EnergyHistory getEnergyHistory(@WebParam(name = "limit") int limit) {
+        return getEnergyHistoryRange(0, 0, limit);
+    }
+
+    /**
+     * Records between two timestamps (epoch ms, 0 = unbounded), newest first.
+     * Long ranges are answered from the minute/hour/day rollups, see the
+     * resolution of the result.
+     */
+    @WebMethod(operationName = "getEnergyHistoryRange")
+    public EnergyHistory getEnergyHistoryRange(
+            @WebParam(name = "from") long from,
+            @WebParam(name = "to") long to,
+            @WebParam(name = "limit") int limit) {
         try {
-            List<Map<String, Object>> historyData = databaseManager.getEnergyHistory();
+            Long fromBound = from > 0 ? Long.valueOf(from) : null;
+            Long toBound = to > 0 ? Long.valueOf(to) : null;
+            int max = limit > 0 ? limit : StorageBackend.DEFAULT_HISTORY_LIMIT;
+            EnergyRollups.Resolution resolution = EnergyRollups.Resolution.pick(fromBound, toBound, max);
             EnergyHistory history = new EnergyHistory();
-            history.setThreshold(threshold);
+            history.setThreshold(core.getThreshold());
+            history.setResolution(resolution.name().toLowerCase());
 
             List<EnergyData> records = new ArrayList<EnergyData>();
-            int count = 0;
-            int maxLimit = limit > 0 ? limit : 100;
-
-            for (Map<String, Object> record : historyData) {
-                if (count >= maxLimit) break;
-                records.add(mapToEnergyData(record));
-                count++;
+            if (resolution == EnergyRollups.Resolution.RAW) {
+                for (EnergyRecord record : core.getEnergyHistory(fromBound, toBound, max)) {
+                    records.add(mapToEnergyData(record));
+                }
+            } else {
+                for (Map<String, Object> point : core.getEnergyRollups(resolution, fromBound, toBound, max)) {
+                    records.add(mapToEnergyData(point));
+                }
             }
 
             history.setRecords(records);
@@ -88,20 +95,19 @@ public class EnergyManagementService {
             @WebParam(name = "jour") int jour,
             @WebParam(name = "weekend") int weekend) {
         try {
-            String prediction = callMLPrediction(heure, jour, weekend);
-            double predictedConsumption = parsePrediction(prediction);
-            String status = predictedConsumption > threshold ? "ELEVEE" : "NORMAL";
-            return new PredictionResponse(predictedConsumption, status, threshold);
+            double predictedConsumption = core.predict(heure, jour, weekend);
+            return new PredictionResponse(predictedConsumption, core.statusFor(predictedConsumption), core.getThreshold());
         } catch (Exception e) {
             System.err.println("Prediction error: " + e.getMessage());
-            return new PredictionResponse(0.0, "ERROR", threshold);
+            return new PredictionResponse(0.0, "ERROR", core.getThreshold());
         }
     }
 
     @WebMethod(operationName = "getCurrentTimeData")
     public TimeData getCurrentTimeData() {
         try {
-            if (tempsService == null) initCORBA();
+            Temps tempsService = core.getTimeService();
+            if (tempsService == null) return new TimeData();
             TimeData timeData = new TimeData();
             timeData.setHeure(tempsService.getHeure());
             timeData.setJour(tempsService.getJour());
@@ -109,6 +115,7 @@ public class EnergyManagementService {
             return timeData;
         } catch (Exception e) {
             System.err.println("CORBA error: " + e.getMessage());
+            core.resetTimeService();
             return new TimeData();
         }
     }
@@ -116,9 +123,7 @@ public class EnergyManagementService {
     @WebMethod(operationName = "shutdownAllDevices")
     public SoapResponse shutdownAllDevices() {
         try {
-            rmi.AppareilInterface appareil = (rmi.AppareilInterface)
-                    Naming.lookup("rmi://localhost:" + RMI_PORT + "/AppareilService");
-            appareil.eteindre();
+            core.shutdownAllDevices();
             return new SoapResponse(true, "All devices shut down successfully via RMI");
         } catch (Exception e) {
             SoapResponse response = new SoapResponse(false, "Failed to shutdown devices");
@@ -133,7 +138,7 @@ public class EnergyManagementService {
             if (newThreshold <= 0) {
                 return new SoapResponse(false, "Threshold must be positive");
             }
-            threshold = newThreshold;
+            core.setThreshold(newThreshold);
             return new SoapResponse(true, "Threshold updated to " + newThreshold);
         } catch (Exception e) {
             SoapResponse response = new SoapResponse(false, "Failed to update threshold");
@@ -144,14 +149,14 @@ public class EnergyManagementService {
 
     @WebMethod(operationName = "getThreshold")
     public double getThreshold() {
-        return threshold;
+        return core.getThreshold();
     }
 
     @WebMethod(operationName = "getServiceStatus")
     public ServiceStatus getServiceStatus() {
         ServiceStatus status = new ServiceStatus();
-        status.setCorba(tempsService != null ? "connected" : "disconnected");
-        status.setRmi(checkRMI() ? "connected" : "disconnected");
+        status.setCorba(core.isTimeServiceConnected() ? "connected" : "disconnected");
+        status.setRmi(core.isDeviceControlReachable() ? "connected" : "disconnected");
         status.setMl("active");
         status.setNameService("running");
         status.setWebServer("running");
@@ -162,15 +167,11 @@ public class EnergyManagementService {
     @WebMethod(operationName = "saveEnergyRecord")
     public SoapResponse saveEnergyRecord(@WebParam(name = "energyData") EnergyData energyData) {
         try {
-            Map<String, Object> data = new HashMap<String, Object>();
-            data.put("timestamp", energyData.getTimestamp());
-            data.put("heure", energyData.getHeure());
-            data.put("jour", energyData.getJour());
-            data.put("weekend", energyData.getWeekend());
-            data.put("actual", energyData.getActual());
-            data.put("predicted", energyData.getPredicted());
-            data.put("status", energyData.getStatus());
-            databaseManager.saveEnergyRecord(data);
+            EnergyRecord data = new EnergyRecord(energyData.getTimestamp(), energyData.getHeure(),
+                    energyData.getJour(), energyData.getWeekend(), energyData.getActual(),
+                    energyData.getPredicted(), energyData.getStatus());
+            core.importEnergyRecord(data);
+            EventStream.getShared().publishEnergyRecord(data);
             return new SoapResponse(true, "Energy record saved successfully");
         } catch (Exception e) {
             SoapResponse response = new SoapResponse(false, "Failed to save record");
@@ -180,93 +181,33 @@ public class EnergyManagementService {
     }
 
     // Helper methods
-    private static void initCORBA() {
-        try {
-            orb = ORB.init(new String[]{"-ORBInitialPort", String.valueOf(CORBA_PORT),
-                    "-ORBInitialHost", "127.0.0.1"}, null);
-            org.omg.CORBA.Object objRef = orb.resolve_initial_references("NameService");
-            NamingContextExt ncRef = NamingContextExtHelper.narrow(objRef);
-            tempsService = TempsHelper.narrow(ncRef.resolve_str("TempsService"));
-            System.out.println("SOAP Service: CORBA connection established");
-        } catch (Exception e) {
-            System.err.println("SOAP Service: CORBA connection failed - " + e.getMessage());
-        }
-    }
-
-    private EnergyData mapToEnergyData(Map<String, Object> record) {
+    private EnergyData mapToEnergyData(EnergyRecord record) {
         EnergyData data = new EnergyData();
-        data.setTimestamp(((Number) record.get("timestamp")).longValue());
-        data.setHeure(((Number) record.get("heure")).intValue());
-        data.setJour(((Number) record.get("jour")).intValue());
-        data.setWeekend(((Number) record.get("weekend")).intValue());
-        data.setActual(((Number) record.get("actual")).doubleValue());
-        data.setPredicted(((Number) record.get("predicted")).doubleValue());
-        data.setStatus((String) record.get("status"));
+        data.setTimestamp(record.getTimestamp());
+        data.setHeure(record.getHeure());
+        data.setJour(record.getJour());
+        data.setWeekend(record.getWeekend());
+        data.setActual(record.getActual());
+        data.setPredicted(record.getPredicted());
+        data.setStatus(record.getStatus());
         return data;
     }
 
-    private String callMLPrediction(int heure, int jour, int weekend) {
-        try {
-            String pythonExecutablePath = "python";
-            String projectDir = System.getProperty("user.dir");
-            String scriptPath = projectDir + "/ml/predict_ml.py";
-
-            ProcessBuilder pb = new ProcessBuilder(pythonExecutablePath, scriptPath,
-                    String.valueOf(heure), String.valueOf(jour), String.valueOf(weekend));
-            pb.redirectErrorStream(true);
-            Process p = pb.start();
-
-            StringBuilder output = new StringBuilder();
-            java.io.BufferedReader reader = new java.io.BufferedReader(
-                    new java.io.InputStreamReader(p.getInputStream()));
-            try {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    output.append(line).append(System.lineSeparator());
-                }
-            } finally {
-                reader.close();
-            }
-
-            p.waitFor(5, java.util.concurrent.TimeUnit.SECONDS);
-            if (p.exitValue() == 0) return output.toString();
-        } catch (Exception e) {
-            System.err.println("ML prediction error: " + e.getMessage());
-        }
-        return simulatePrediction(heure, jour, weekend);
-    }
-
-    private String simulatePrediction(int heure, int jour, int weekend) {
-        double base = 35.0;
-        if (0 <= heure && heure < 6) base -= 10;
-        else if (6 <= heure && heure < 9) base += 15;
-        else if (9 <= heure && heure < 17) base += 5;
-        else if (17 <= heure && heure < 22) base += 25;
-        if (weekend == 1 && 9 <= heure && heure < 17) base += 10;
-        base += (jour % 3) * 2;
-        return "Predicted energy consumption: " + String.format("%.1f", base) + " kWh";
-    }
-
-    private double parsePrediction(String output) {
-        try {
-            String[] lines = output.split(System.lineSeparator());
-            for (String line : lines) {
-                if (line.contains("Predicted energy consumption:")) {
-                    String numericStr = line.replaceAll("[^0-9.]", "");
-                    return Double.parseDouble(numericStr);
-                }
-            }
-            return 45.0;
-        } catch (Exception e) {
-            return 45.0;
-        }
+    /**
+     * Rollup points have no heure/jour/weekend (left at 0) and get their
+     * status from the average consumption.
+     */
+    private EnergyData mapToEnergyData(Map<String, Object> point) {
+        EnergyData data = new EnergyData();
+        data.setTimestamp(number(point, "timestamp").longValue());
+        data.setActual(number(point, "actual").doubleValue());
+        data.setPredicted(number(point, "predicted").doubleValue());
+        data.setStatus(core.statusFor(data.getActual()));
+        return data;
     }
 
-    private boolean checkRMI() {
-        try {
-            return Naming.lookup("rmi://localhost:" + RMI_PORT + "/AppareilService") != null;
-        } catch (Exception e) {
-            return false;
-        }
+    private static Number number(Map<String, Object> record, String key) {
+        Object value = record.get(key);
+        return value instanceof Number ? (Number) value : Integer.valueOf(0);
     }
 }
\ No newline at end of file
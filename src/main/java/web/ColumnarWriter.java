@@ -0,0 +1,126 @@
+package web;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a table as application/x-smarthome-columnar: values are grouped by
+ * column, so names are sent once instead of once per record, timestamps go
+ * as varint differences and repeated strings as dictionary indices.
+ * dashboard.html has the matching decoder (decodeColumnar).
+ *
+ * Layout, big-endian: "SHC", version 1, u16 length and UTF-8 JSON of the
+ * fields outside the table, u32 rows, u8 columns, then for each column a
+ * u8 name length, the name, a u8 type and the values of every row:
+ *  1 timestamp  zigzag varint difference to the previous row (to 0 for the first)
+ *  2 double     float64, NaN for null
+ *  3 integer    zigzag varint
+ *  4 string     u8 dictionary size, each entry as u8 length and UTF-8, then a u8 index per row
+ *
+ * Like JsonStreamWriter, the caller is trusted to write as many columns
+ * and rows as announced.
+ */
+public class ColumnarWriter implements Closeable {
+
+    public static final String CONTENT_TYPE = "application/x-smarthome-columnar";
+
+    private static final int TIMESTAMP = 1;
+    private static final int DOUBLE = 2;
+    private static final int INTEGER = 3;
+    private static final int STRING = 4;
+
+    private final DataOutputStream out;
+
+    public ColumnarWriter(OutputStream stream) {
+        this.out = new DataOutputStream(new BufferedOutputStream(stream, 8192));
+    }
+
+    /**
+     * @param meta fields outside the table (resolution, threshold...), written as JSON
+     */
+    public void begin(Map<String, Object> meta, int rows, int columns) throws IOException {
+        ByteArrayOutputStream json = new ByteArrayOutputStream(128);
+        JsonStreamWriter writer = new JsonStreamWriter(json);
+        writer.value(meta);
+        writer.close();
+        byte[] metaBytes = json.toByteArray();
+        if (metaBytes.length > 0xFFFF) throw new IllegalArgumentException("metadata too large");
+        out.writeBytes("SHC");
+        out.writeByte(1);
+        out.writeShort(metaBytes.length);
+        out.write(metaBytes);
+        out.writeInt(rows);
+        out.writeByte(columns);
+    }
+
+    public void timestamps(String name, long[] values) throws IOException {
+        column(name, TIMESTAMP);
+        long previous = 0;
+        for (long value : values) {
+            varint(value - previous);
+            previous = value;
+        }
+    }
+
+    public void doubles(String name, double[] values) throws IOException {
+        column(name, DOUBLE);
+        for (double value : values) out.writeDouble(value);
+    }
+
+    public void integers(String name, long[] values) throws IOException {
+        column(name, INTEGER);
+        for (long value : values) varint(value);
+    }
+
+    /**
+     * For columns with few distinct values (at most 255, none null).
+     */
+    public void strings(String name, String[] values) throws IOException {
+        List<String> dictionary = new ArrayList<String>();
+        for (String value : values) {
+            if (!dictionary.contains(value)) dictionary.add(value);
+        }
+        if (dictionary.size() > 255) throw new IllegalArgumentException("too many distinct values in " + name);
+        column(name, STRING);
+        out.writeByte(dictionary.size());
+        for (String entry : dictionary) shortString(entry);
+        for (String value : values) out.writeByte(dictionary.indexOf(value));
+    }
+
+    /**
+     * Flushes and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void column(String name, int type) throws IOException {
+        shortString(name);
+        out.writeByte(type);
+    }
+
+    private void shortString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 255) throw new IllegalArgumentException("string too long: " + s);
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    private void varint(long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+}
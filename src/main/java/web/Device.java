@@ -0,0 +1,58 @@
+package web;
+
+import org.bson.Document;
+
+/**
+ * Immutable device state as kept by DeviceRegistry.
+ */
+public final class Device {
+
+    private final String name;
+    private final double baseConsumption;
+    private final boolean isOn;
+    private final String group;
+
+    public Device(String name, double baseConsumption, boolean isOn) {
+        this(name, baseConsumption, isOn, null);
+    }
+
+    /**
+     * @param group optional group name (room, circuit...), or null
+     */
+    public Device(String name, double baseConsumption, boolean isOn, String group) {
+        this.name = name;
+        this.baseConsumption = baseConsumption;
+        this.isOn = isOn;
+        this.group = group;
+    }
+
+    static Device fromDocument(Document doc) {
+        Object bc = doc.get("baseConsumption");
+        Object on = doc.get("isOn");
+        Object group = doc.get("group");
+        return new Device(doc.getString("name"),
+                (bc instanceof Number) ? ((Number) bc).doubleValue() : 0.0,
+                (on instanceof Boolean) ? (Boolean) on : false,
+                (group instanceof String) ? (String) group : null);
+    }
+
+    public String getName() { return name; }
+
+    public double getBaseConsumption() { return baseConsumption; }
+
+    public boolean isOn() { return isOn; }
+
+    public String getGroup() { return group; }
+
+    public Device withOn(boolean on) {
+        return on == isOn ? this : new Device(name, baseConsumption, on, group);
+    }
+
+    public Device withBaseConsumption(double consumption) {
+        return new Device(name, consumption, isOn, group);
+    }
+
+    public Device withGroup(String newGroup) {
+        return new Device(name, baseConsumption, isOn, newGroup);
+    }
+}
@@ -0,0 +1,118 @@
+package web;
+
+import com.mongodb.client.MongoCollection;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Authoritative in-memory copy of the devices collection, keyed by name.
+ *
+ * Loaded once at startup; MongoDBManager writes every device change to
+ * MongoDB first and then here (write-through), so reads never touch the
+ * database.
+ */
+public class DeviceRegistry {
+
+    private static final Comparator<Device> BY_NAME = new Comparator<Device>() {
+        @Override
+        public int compare(Device a, Device b) {
+            return a.getName().compareTo(b.getName());
+        }
+    };
+
+    private final ConcurrentMap<String, Device> devices = new ConcurrentHashMap<String, Device>();
+    private final AtomicLong version = new AtomicLong();
+
+    public void load(MongoCollection<Document> collection) {
+        ConcurrentMap<String, Device> loaded = new ConcurrentHashMap<String, Device>();
+        for (Document doc : collection.find()) {
+            Device device = Device.fromDocument(doc);
+            if (device.getName() != null) loaded.put(device.getName(), device);
+        }
+        devices.keySet().retainAll(loaded.keySet());
+        devices.putAll(loaded);
+        version.incrementAndGet();
+    }
+
+    public Device get(String name) {
+        return name == null ? null : devices.get(name);
+    }
+
+    /**
+     * Exact match first, then a case-insensitive scan of the in-memory devices.
+     */
+    public Device findIgnoreCase(String name) {
+        Device device = get(name);
+        if (device != null || name == null) return device;
+        for (Device d : devices.values()) {
+            if (d.getName().equalsIgnoreCase(name)) return d;
+        }
+        return null;
+    }
+
+    public void put(Device device) {
+        devices.put(device.getName(), device);
+        version.incrementAndGet();
+    }
+
+    public void remove(String name) {
+        devices.remove(name);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Incremented after every change, for caches of device responses.
+     */
+    public long version() {
+        return version.get();
+    }
+
+    public boolean isEmpty() {
+        return devices.isEmpty();
+    }
+
+    /**
+     * Snapshot sorted by name, like the former find().sort(name).
+     */
+    public List<Device> all() {
+        List<Device> list = new ArrayList<Device>(devices.values());
+        Collections.sort(list, BY_NAME);
+        return list;
+    }
+
+    public List<Device> byStatus(boolean isOn) {
+        List<Device> list = new ArrayList<Device>();
+        for (Device d : all()) {
+            if (d.isOn() == isOn) list.add(d);
+        }
+        return list;
+    }
+
+    /**
+     * Devices in the group, or devices without a group when group is null
+     * (same as the Mongo filter group == null).
+     */
+    public List<Device> byGroup(String group) {
+        List<Device> list = new ArrayList<Device>();
+        for (Device d : all()) {
+            if (group == null ? d.getGroup() == null : group.equals(d.getGroup())) list.add(d);
+        }
+        return list;
+    }
+
+    public double totalConsumptionOfOnDevices() {
+        double total = 0.0;
+        for (Device d : devices.values()) {
+            if (d.isOn()) total += d.getBaseConsumption();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,75 @@
+package web;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling (Steinarsson, 2013): keeps the
+ * first and last points and, from each of the threshold - 2 buckets in
+ * between, the point forming the largest triangle with the point kept
+ * before it and the average of the next bucket. Peaks and drops survive,
+ * unlike with averaging, so thousands of samples still draw the same shape
+ * in a few hundred points. It only sees the values it is given: over
+ * rollups, HistoryHandler gives it each bucket's min or max, not the average.
+ */
+public final class Downsampler {
+
+    private Downsampler() {
+    }
+
+    /**
+     * Indices of the points to keep, ascending. x must be ascending; all
+     * indices are returned when there are at most threshold points (or
+     * threshold is below 3).
+     */
+    public static int[] lttb(long[] x, double[] y, int threshold) {
+        int n = x.length;
+        if (threshold >= n || threshold < 3) return range(n);
+        int[] kept = new int[threshold];
+        int count = 0;
+        kept[count++] = 0;
+        double every = (double) (n - 2) / (threshold - 2);
+        int a = 0;
+        for (int i = 0; i < threshold - 2; i++) {
+            // average of the next bucket (the last point for the last bucket)
+            int nextStart = (int) Math.floor((i + 1) * every) + 1;
+            int nextEnd = Math.min((int) Math.floor((i + 2) * every) + 1, n);
+            double avgX = 0;
+            double avgY = 0;
+            for (int j = nextStart; j < nextEnd; j++) {
+                avgX += x[j];
+                avgY += y[j];
+            }
+            int nextCount = nextEnd - nextStart;
+            if (nextCount > 0) {
+                avgX /= nextCount;
+                avgY /= nextCount;
+            } else {
+                avgX = x[n - 1];
+                avgY = y[n - 1];
+            }
+
+            int start = (int) Math.floor(i * every) + 1;
+            int end = (int) Math.floor((i + 1) * every) + 1;
+            // relative to point a, so large timestamps do not cost precision
+            double ax = x[a];
+            double ay = y[a];
+            double maxArea = -1;
+            int picked = start;
+            for (int j = start; j < end; j++) {
+                double area = Math.abs((ax - avgX) * (y[j] - ay) - (ax - x[j]) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    picked = j;
+                }
+            }
+            kept[count++] = picked;
+            a = picked;
+        }
+        kept[count] = n - 1;
+        return kept;
+    }
+
+    private static int[] range(int n) {
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++) all[i] = i;
+        return all;
+    }
+}
@@ -0,0 +1,548 @@
+package web;
+
+import metrics.Metrics;
+
+import org.bson.Document;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage in local files, for a single home without a database server
+ * (-Dsmarthome.storage=embedded, files in -Dsmarthome.storage.dir, default "data").
+ *
+ *  - energy_history.csv: append-only log, one line per record, kept in
+ *    memory sorted by timestamp. Records older than the raw retention
+ *    (smarthome.retention.rawDays) are dropped and the log rewritten at
+ *    startup and then hourly. Minute/hour/day resolutions are aggregated
+ *    from the retained records on read.
+ *  - devices.json: every device, rewritten (temp file + rename) on each change.
+ *
+ * Every operation is timed in Metrics as "embedded.&lt;method&gt;".
+ */
+public class EmbeddedStorage implements StorageBackend {
+
+    private static final String ENERGY_FILE = "energy_history.csv";
+    private static final String DEVICES_FILE = "devices.json";
+    private static final long COMPACT_INTERVAL_MS = 3600000L;
+
+    private final File directory;
+    private final DeviceRegistry deviceRegistry = new DeviceRegistry();
+    private final Object deviceLock = new Object();
+
+    // guarded by samples
+    private final List<EnergyRecord> samples = new ArrayList<EnergyRecord>();
+    private Writer energyLog;
+    private long nextCompaction;
+
+    public EmbeddedStorage(File directory) {
+        this.directory = directory;
+    }
+
+    public static EmbeddedStorage fromSystemProperties() {
+        return new EmbeddedStorage(new File(System.getProperty("smarthome.storage.dir", "data")));
+    }
+
+    @Override
+    public void init() {
+        long start = System.nanoTime();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("cannot create " + directory.getAbsolutePath());
+            }
+            loadDevices();
+            synchronized (samples) {
+                boolean clean = loadEnergyLog();
+                if (!trimExpired() && clean) {
+                    openEnergyLog();
+                } else {
+                    rewriteEnergyLog();
+                }
+            }
+            System.out.println("Embedded storage ready in " + directory.getAbsolutePath()
+                    + " (" + samples.size() + " records, " + deviceRegistry.all().size() + " devices)");
+        } catch (Exception e) {
+            Metrics.error("embedded.init");
+            System.err.println("Failed to open embedded storage: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            Metrics.time("embedded.init", start);
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        // local files: nothing to wait for
+        return true;
+    }
+
+    @Override
+    public void close() {
+        synchronized (samples) {
+            try {
+                if (energyLog != null) energyLog.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close " + ENERGY_FILE + ": " + e.getMessage());
+            }
+            energyLog = null;
+        }
+    }
+
+    /* -------------------- ENERGY HISTORY -------------------- */
+
+    @Override
+    public void saveEnergyRecord(EnergyRecord record) {
+        long start = System.nanoTime();
+        try {
+            synchronized (samples) {
+                insertSorted(record);
+                if (energyLog != null) {
+                    energyLog.write(toLine(record));
+                    energyLog.write('\n');
+                    energyLog.flush();
+                }
+                if (System.currentTimeMillis() >= nextCompaction && trimExpired()) {
+                    rewriteEnergyLog();
+                }
+            }
+        } catch (Exception e) {
+            Metrics.error("embedded.saveEnergyRecord");
+            System.err.println("Failed to save record: " + e.getMessage());
+        } finally {
+            Metrics.time("embedded.saveEnergyRecord", start);
+        }
+    }
+
+    @Override
+    public int getPendingEnergyWrites() {
+        return 0;
+    }
+
+    @Override
+    public List<EnergyRecord> getEnergyHistory(Long from, Long to, int limit) {
+        List<EnergyRecord> history = new ArrayList<EnergyRecord>();
+        long start = System.nanoTime();
+        try {
+            int max = limit > 0 ? Math.min(limit, MAX_HISTORY_LIMIT) : DEFAULT_HISTORY_LIMIT;
+            synchronized (samples) {
+                int lo = from == null ? 0 : firstIndexAtOrAfter(from);
+                int hi = to == null ? samples.size() : firstIndexAtOrAfter(to + 1);
+                for (int i = hi - 1; i >= lo && history.size() < max; i--) {
+                    history.add(samples.get(i));
+                }
+            }
+        } catch (Exception e) {
+            Metrics.error("embedded.getEnergyHistory");
+            System.err.println("Failed to read energy history: " + e.getMessage());
+        } finally {
+            Metrics.time("embedded.getEnergyHistory", start);
+        }
+        return history;
+    }
+
+    @Override
+    public List<EnergyRecord> getEnergyHistoryAfter(long since, int limit) {
+        List<EnergyRecord> history = new ArrayList<EnergyRecord>();
+        long start = System.nanoTime();
+        try {
+            int max = limit > 0 ? Math.min(limit, MAX_HISTORY_LIMIT) : DEFAULT_HISTORY_LIMIT;
+            synchronized (samples) {
+                for (int i = firstIndexAtOrAfter(since + 1); i < samples.size() && history.size() < max; i++) {
+                    history.add(samples.get(i));
+                }
+            }
+        } catch (Exception e) {
+            Metrics.error("embedded.getEnergyHistoryAfter");
+            System.err.println("Failed to read energy history: " + e.getMessage());
+        } finally {
+            Metrics.time("embedded.getEnergyHistoryAfter", start);
+        }
+        return history;
+    }
+
+    @Override
+    public List<Map<String, Object>> getEnergyRollups(EnergyRollups.Resolution resolution, Long from, Long to, int limit) {
+        List<Map<String, Object>> points = new ArrayList<Map<String, Object>>();
+        long start = System.nanoTime();
+        try {
+            int max = limit > 0 ? Math.min(limit, MAX_HISTORY_LIMIT) : DEFAULT_HISTORY_LIMIT;
+            synchronized (samples) {
+                int lo = from == null ? 0 : firstIndexAtOrAfter(resolution.bucketStart(from));
+                int hi = to == null ? samples.size() : firstIndexAtOrAfter(to + 1);
+
+                Document bucket = null;
+                long bucketStart = 0;
+                for (int i = hi - 1; i >= lo && points.size() < max; i--) {
+                    EnergyRecord sample = samples.get(i);
+                    long sampleBucket = resolution.bucketStart(sample.getTimestamp());
+                    if (bucket == null || sampleBucket != bucketStart) {
+                        if (bucket != null) points.add(EnergyRollups.toPoint(bucket));
+                        bucketStart = sampleBucket;
+                        bucket = new Document("timestamp", bucketStart).append("count", 0L);
+                    }
+                    addTo(bucket, sample);
+                }
+                if (bucket != null && points.size() < max) points.add(EnergyRollups.toPoint(bucket));
+            }
+        } catch (Exception e) {
+            Metrics.error("embedded.getEnergyRollups");
+            System.err.println("Failed to read energy rollups: " + e.getMessage());
+        } finally {
+            Metrics.time("embedded.getEnergyRollups", start);
+        }
+        return points;
+    }
+
+    @Override
+    public EnergyRecord getLatestEnergyRecord() {
+        synchronized (samples) {
+            return samples.isEmpty() ? null : samples.get(samples.size() - 1);
+        }
+    }
+
+    private void insertSorted(EnergyRecord sample) {
+        int index = samples.size();
+        while (index > 0 && samples.get(index - 1).getTimestamp() > sample.getTimestamp()) index--;
+        samples.add(index, sample);
+    }
+
+    private int firstIndexAtOrAfter(long timestamp) {
+        int lo = 0;
+        int hi = samples.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (samples.get(mid).getTimestamp() < timestamp) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Drops records past the raw retention. Returns true if any was dropped.
+     */
+    private boolean trimExpired() {
+        nextCompaction = System.currentTimeMillis() + COMPACT_INTERVAL_MS;
+        long retentionMs = EnergyRollups.Resolution.RAW.retentionMs;
+        if (retentionMs <= 0) return false;
+        int expired = firstIndexAtOrAfter(System.currentTimeMillis() - retentionMs);
+        if (expired == 0) return false;
+        samples.subList(0, expired).clear();
+        return true;
+    }
+
+    /**
+     * Reads the log; returns false if some lines were unreadable (e.g. a line
+     * cut short by a crash), so the log gets rewritten without them.
+     */
+    private boolean loadEnergyLog() throws IOException {
+        samples.clear();
+        File file = new File(directory, ENERGY_FILE);
+        if (!file.exists()) return true;
+        boolean clean = true;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                try {
+                    insertSorted(fromLine(line));
+                } catch (RuntimeException e) {
+                    clean = false;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return clean;
+    }
+
+    private void openEnergyLog() throws IOException {
+        energyLog = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(directory, ENERGY_FILE), true), StandardCharsets.UTF_8));
+    }
+
+    private void rewriteEnergyLog() throws IOException {
+        if (energyLog != null) energyLog.close();
+        File tmp = new File(directory, ENERGY_FILE + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+        try {
+            for (EnergyRecord sample : samples) {
+                writer.write(toLine(sample));
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        Files.move(tmp.toPath(), new File(directory, ENERGY_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        openEnergyLog();
+    }
+
+    /* -------------------- DEVICES -------------------- */
+
+    @Override
+    public boolean deviceExistsByName(String name) {
+        return deviceRegistry.get(name) != null;
+    }
+
+    @Override
+    public Device getDevice(String name) {
+        return deviceRegistry.get(name);
+    }
+
+    @Override
+    public Device findDeviceIgnoreCase(String name) {
+        return deviceRegistry.findIgnoreCase(name);
+    }
+
+    @Override
+    public boolean insertDevice(String name, double baseConsumption, boolean isOn, String group) {
+        if (name == null) return false;
+        synchronized (deviceLock) {
+            if (deviceRegistry.get(name) != null) return false;
+            deviceRegistry.put(new Device(name, baseConsumption, isOn, group));
+            saveDevices();
+            return true;
+        }
+    }
+
+    @Override
+    public void upsertDevice(String name, double baseConsumption, boolean isOn) {
+        synchronized (deviceLock) {
+            Device existing = deviceRegistry.get(name);
+            deviceRegistry.put(new Device(name, baseConsumption, isOn, existing != null ? existing.getGroup() : null));
+            saveDevices();
+        }
+    }
+
+    @Override
+    public boolean removeDevice(String name) {
+        synchronized (deviceLock) {
+            if (deviceRegistry.get(name) == null) return false;
+            deviceRegistry.remove(name);
+            saveDevices();
+            return true;
+        }
+    }
+
+    @Override
+    public Device setDevicePower(String name, boolean isOn) {
+        synchronized (deviceLock) {
+            Device device = deviceRegistry.get(name);
+            return device == null ? null : update(device.withOn(isOn));
+        }
+    }
+
+    @Override
+    public Device toggleDevicePower(String name) {
+        synchronized (deviceLock) {
+            Device device = deviceRegistry.get(name);
+            return device == null ? null : update(device.withOn(!device.isOn()));
+        }
+    }
+
+    @Override
+    public Device updateDeviceConsumption(String name, double newConsumption) {
+        synchronized (deviceLock) {
+            Device device = deviceRegistry.get(name);
+            return device == null ? null : update(device.withBaseConsumption(newConsumption));
+        }
+    }
+
+    @Override
+    public Device setDeviceGroup(String name, String group) {
+        synchronized (deviceLock) {
+            Device device = deviceRegistry.get(name);
+            return device == null ? null : update(device.withGroup(group));
+        }
+    }
+
+    private Device update(Device device) {
+        deviceRegistry.put(device);
+        saveDevices();
+        return device;
+    }
+
+    @Override
+    public long getDevicesVersion() {
+        return deviceRegistry.version();
+    }
+
+    @Override
+    public List<Device> getAllDevices() {
+        return deviceRegistry.all();
+    }
+
+    @Override
+    public List<Device> getDevicesByGroup(String group) {
+        return deviceRegistry.byGroup(group);
+    }
+
+    @Override
+    public List<Device> getDevicesByStatus(boolean isOn) {
+        return deviceRegistry.byStatus(isOn);
+    }
+
+    @Override
+    public double getTotalConsumptionForOnDevices() {
+        return deviceRegistry.totalConsumptionOfOnDevices();
+    }
+
+    /* -------------------- BULK POWER UPDATES -------------------- */
+
+    @Override
+    public List<Device> setDevicesPower(Collection<String> names, boolean isOn) {
+        List<Device> matched = new ArrayList<Device>();
+        for (String name : names) {
+            Device device = deviceRegistry.get(name);
+            if (device != null) matched.add(device);
+        }
+        return applyPower(matched, isOn);
+    }
+
+    @Override
+    public List<Device> setGroupPower(String group, boolean isOn) {
+        return applyPower(deviceRegistry.byGroup(group), isOn);
+    }
+
+    @Override
+    public List<Device> setAllDevicesPower(boolean isOn) {
+        return applyPower(deviceRegistry.all(), isOn);
+    }
+
+    @Override
+    public List<Device> setDevicesPowerWhere(Boolean currentlyOn, String group, Double minConsumption,
+                                             Double maxConsumption, boolean isOn) {
+        List<Device> matched = new ArrayList<Device>();
+        for (Device device : deviceRegistry.all()) {
+            if (currentlyOn != null && device.isOn() != currentlyOn) continue;
+            if (group != null && !group.equals(device.getGroup())) continue;
+            if (minConsumption != null && device.getBaseConsumption() < minConsumption) continue;
+            if (maxConsumption != null && device.getBaseConsumption() > maxConsumption) continue;
+            matched.add(device);
+        }
+        return applyPower(matched, isOn);
+    }
+
+    @Override
+    public List<Device> setDevicesPower(Map<String, Boolean> states) {
+        List<Device> changed = new ArrayList<Device>();
+        synchronized (deviceLock) {
+            for (Map.Entry<String, Boolean> entry : states.entrySet()) {
+                Device device = deviceRegistry.get(entry.getKey());
+                if (device == null || entry.getValue() == null) continue;
+                Device updated = device.withOn(entry.getValue());
+                deviceRegistry.put(updated);
+                changed.add(updated);
+            }
+            if (!changed.isEmpty()) saveDevices();
+        }
+        return changed;
+    }
+
+    private List<Device> applyPower(List<Device> matched, boolean isOn) {
+        List<Device> changed = new ArrayList<Device>(matched.size());
+        synchronized (deviceLock) {
+            for (Device device : matched) {
+                // re-read under the lock: the device may have changed since it was matched
+                Device current = deviceRegistry.get(device.getName());
+                if (current == null) continue;
+                Device updated = current.withOn(isOn);
+                deviceRegistry.put(updated);
+                changed.add(updated);
+            }
+            if (!changed.isEmpty()) saveDevices();
+        }
+        return changed;
+    }
+
+    private void loadDevices() throws IOException {
+        File file = new File(directory, DEVICES_FILE);
+        if (!file.exists()) return;
+        JSONArray array = new JSONArray(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject json = array.getJSONObject(i);
+            deviceRegistry.put(new Device(json.getString("name"), json.optDouble("baseConsumption", 0.0),
+                    json.optBoolean("isOn", false), json.has("group") ? json.getString("group") : null));
+        }
+    }
+
+    /**
+     * Writes every device; called under deviceLock. On failure the change
+     * stays in memory and is written with the next one.
+     */
+    private void saveDevices() {
+        long start = System.nanoTime();
+        try {
+            JSONArray array = new JSONArray();
+            for (Device device : deviceRegistry.all()) {
+                JSONObject json = new JSONObject();
+                json.put("name", device.getName());
+                json.put("baseConsumption", device.getBaseConsumption());
+                json.put("isOn", device.isOn());
+                if (device.getGroup() != null) json.put("group", device.getGroup());
+                array.put(json);
+            }
+            File tmp = new File(directory, DEVICES_FILE + ".tmp");
+            Files.write(tmp.toPath(), array.toString(2).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), new File(directory, DEVICES_FILE).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            Metrics.error("embedded.saveDevices");
+            System.err.println("Failed to write " + DEVICES_FILE + ": " + e.getMessage());
+        } finally {
+            Metrics.time("embedded.saveDevices", start);
+        }
+    }
+
+    /* -------------------- Energy log lines -------------------- */
+
+    /**
+     * timestamp,heure,jour,weekend,actual,predicted,status
+     */
+    private static EnergyRecord fromLine(String line) {
+        String[] f = line.split(",");
+        if (f.length != 7) throw new IllegalArgumentException("bad record: " + line);
+        return new EnergyRecord(Long.parseLong(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[2]),
+                Integer.parseInt(f[3]), Double.parseDouble(f[4]), Double.parseDouble(f[5]), f[6]);
+    }
+
+    private static String toLine(EnergyRecord record) {
+        return record.getTimestamp() + "," + record.getHeure() + "," + record.getJour() + "," + record.getWeekend()
+                + "," + record.getActual() + "," + record.getPredicted() + "," + record.getStatus();
+    }
+
+    /**
+     * Adds a record to a rollup document (the fields EnergyRollups stores).
+     */
+    private static void addTo(Document bucket, EnergyRecord record) {
+        bucket.put("count", ((Number) bucket.get("count")).longValue() + 1);
+        add(bucket, "actual", record.getActual());
+        add(bucket, "predicted", record.getPredicted());
+    }
+
+    private static void add(Document bucket, String metric, double value) {
+        Object sum = bucket.get(metric + "Sum");
+        bucket.put(metric + "Sum", (sum == null ? 0.0 : (Double) sum) + value);
+        Object min = bucket.get(metric + "Min");
+        bucket.put(metric + "Min", min == null ? value : Math.min((Double) min, value));
+        Object max = bucket.get(metric + "Max");
+        bucket.put(metric + "Max", max == null ? value : Math.max((Double) max, value));
+    }
+}
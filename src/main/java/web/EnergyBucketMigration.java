@@ -0,0 +1,94 @@
+package web;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Copies energy_history into hourly documents of energy_buckets.
+ *
+ * Run it with the server stopped, then start the server with
+ * -Dsmarthome.energy.storage=buckets:
+ * <pre>
+ *     java web.EnergyBucketMigration [--drop-source]
+ * </pre>
+ * Records are read in timestamp order and written in batches through
+ * EnergyBuckets, so running it again skips what was already copied. With
+ * --drop-source, energy_history is dropped once the sample counts match.
+ */
+public class EnergyBucketMigration {
+
+    private static final int BATCH_SIZE = 5000;
+
+    public static void main(String[] args) {
+        boolean dropSource = Arrays.asList(args).contains("--drop-source");
+        MongoClient client = MongoClients.create(MongoDBManager.CONNECTION_STRING);
+        try {
+            MongoDatabase database = client.getDatabase(MongoDBManager.DATABASE_NAME);
+            MongoCollection<Document> source = database.getCollection(MongoDBManager.ENERGY_COLLECTION);
+            EnergyBuckets buckets = new EnergyBuckets(database);
+            buckets.init();
+
+            long started = System.currentTimeMillis();
+            long copied = 0;
+            long lost = 0;
+            List<EnergyRecord> batch = new ArrayList<EnergyRecord>(BATCH_SIZE);
+            for (EnergyRecord record : source.withDocumentClass(EnergyRecord.class)
+                    .withCodecRegistry(EnergyRecordCodec.REGISTRY)
+                    .find(Filters.type("timestamp", "number"))
+                    .sort(Sorts.ascending("timestamp"))
+                    .batchSize(BATCH_SIZE)) {
+                batch.add(record);
+                if (batch.size() == BATCH_SIZE) {
+                    lost += buckets.write(batch).size();
+                    copied += batch.size();
+                    batch.clear();
+                    System.out.println("  " + copied + " records...");
+                }
+            }
+            if (!batch.isEmpty()) {
+                lost += buckets.write(batch).size();
+                copied += batch.size();
+            }
+            if (lost > 0) System.err.println(lost + " records could not be written, run the migration again.");
+
+            long sourceCount = source.countDocuments();
+            long sampleCount = countSamples(database);
+            long bucketCount = buckets.countBuckets();
+            System.out.println("Migrated " + copied + " records in " + (System.currentTimeMillis() - started) + " ms: "
+                    + sourceCount + " documents -> " + bucketCount + " buckets holding " + sampleCount + " samples.");
+
+            if (dropSource) {
+                if (sampleCount >= sourceCount) {
+                    source.drop();
+                    System.out.println("Dropped " + MongoDBManager.ENERGY_COLLECTION + ".");
+                } else {
+                    System.err.println("Not dropping " + MongoDBManager.ENERGY_COLLECTION
+                            + ": buckets hold fewer samples than the source.");
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Migration failed: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            client.close();
+        }
+    }
+
+    private static long countSamples(MongoDatabase database) {
+        Document total = database.getCollection(EnergyBuckets.COLLECTION).aggregate(Arrays.asList(
+                Aggregates.group(null, Accumulators.sum("samples", "$count")))).first();
+        return total != null ? ((Number) total.get("samples")).longValue() : 0;
+    }
+}
@@ -0,0 +1,331 @@
+package web;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Energy history stored as one document per hour instead of one per sample
+ * (smarthome.energy.storage=buckets).
+ *
+ * A bucket holds the hour start, parallel arrays of sample offsets in ms
+ * ("t"), actual and predicted values and heure/jour/weekend ("cal", as
+ * heure * 100 + jour * 10 + weekend: they come from the time service, not
+ * from the UTC hour of the bucket), the offsets of samples with status
+ * ELEVEE ("alerts"), and count/sum/min/max summaries. Buckets written
+ * before "cal" existed have heure/jour/weekend once, for every sample.
+ *
+ * A batch is appended with one upsert per hour, guarded on "last" (newest
+ * sample already stored). When the bucket already holds samples at or after
+ * the batch (a retry, a second migration run, a backfilled record), the
+ * upsert hits the unique index on "start" and the samples are merged into
+ * the bucket instead, skipping the ones already stored.
+ */
+public class EnergyBuckets {
+
+    public static final String COLLECTION = "energy_buckets";
+    private static final long BUCKET_MS = 3600000L;
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int MERGE_ATTEMPTS = 3;
+
+    private final MongoDatabase database;
+    private final MongoCollection<Document> collection;
+
+    public EnergyBuckets(MongoDatabase database) {
+        this.database = database;
+        this.collection = database.getCollection(COLLECTION);
+    }
+
+    /**
+     * Indexes and the raw retention TTL (smarthome.retention.rawDays).
+     */
+    public void init() {
+        collection.createIndex(Indexes.descending("start"), new IndexOptions().name("start_desc").unique(true));
+        EnergyRollups.ensureTtl(database, COLLECTION, EnergyRollups.Resolution.RAW.retentionMs);
+    }
+
+    /**
+     * Appends samples to their hour buckets. Returns the samples that could
+     * not be stored, to be retried; samples already stored count as stored.
+     */
+    public List<EnergyRecord> write(List<EnergyRecord> batch) {
+        Map<Long, List<EnergyRecord>> hours = new TreeMap<Long, List<EnergyRecord>>();
+        for (EnergyRecord record : batch) {
+            long start = bucketStart(record.getTimestamp());
+            List<EnergyRecord> samples = hours.get(start);
+            if (samples == null) {
+                samples = new ArrayList<EnergyRecord>();
+                hours.put(start, samples);
+            }
+            samples.add(record);
+        }
+        List<EnergyRecord> failed = new ArrayList<EnergyRecord>();
+        if (hours.isEmpty()) return failed;
+
+        List<Long> starts = new ArrayList<Long>(hours.keySet());
+        List<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>(hours.size());
+        for (Long start : starts) {
+            updates.add(append(start, hours.get(start)));
+        }
+        try {
+            collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            if (e.getWriteConcernError() != null) throw e;
+            for (BulkWriteError error : e.getWriteErrors()) {
+                long start = starts.get(error.getIndex());
+                List<EnergyRecord> samples = hours.get(start);
+                if (error.getCode() != DUPLICATE_KEY || !merge(start, samples)) failed.addAll(samples);
+            }
+        }
+        return failed;
+    }
+
+    private static UpdateOneModel<Document> append(long start, List<EnergyRecord> samples) {
+        Samples sorted = new Samples(start, samples);
+        EnergyRecord first = sorted.records.get(0);
+
+        List<Bson> update = new ArrayList<Bson>();
+        update.add(Updates.setOnInsert("date", new Date(start)));
+        update.add(Updates.setOnInsert("heure", first.getHeure()));
+        update.add(Updates.setOnInsert("jour", first.getJour()));
+        update.add(Updates.setOnInsert("weekend", first.getWeekend()));
+        update.add(Updates.max("last", sorted.last));
+        update.add(Updates.inc("count", sorted.offsets.size()));
+        update.add(Updates.pushEach("t", sorted.offsets));
+        update.add(Updates.pushEach("actual", sorted.actual));
+        update.add(Updates.pushEach("predicted", sorted.predicted));
+        update.add(Updates.pushEach("cal", sorted.calendar));
+        if (!sorted.alerts.isEmpty()) update.add(Updates.pushEach("alerts", sorted.alerts));
+        update.add(Updates.inc("actualSum", sorted.actualSum));
+        update.add(Updates.min("actualMin", sorted.actualMin));
+        update.add(Updates.max("actualMax", sorted.actualMax));
+        update.add(Updates.inc("predictedSum", sorted.predictedSum));
+        update.add(Updates.min("predictedMin", sorted.predictedMin));
+        update.add(Updates.max("predictedMax", sorted.predictedMax));
+
+        // matches only a bucket that has nothing at or after this batch yet
+        Bson filter = Filters.and(Filters.eq("start", start),
+                Filters.or(Filters.exists("last", false), Filters.lt("last", first.getTimestamp())));
+        return new UpdateOneModel<Document>(filter, Updates.combine(update), new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Adds the samples whose timestamp the bucket does not hold yet and
+     * rewrites it, guarded on its count so that a concurrent append is not
+     * lost. Returns false when the bucket kept changing.
+     */
+    private boolean merge(long start, List<EnergyRecord> samples) {
+        for (int attempt = 0; attempt < MERGE_ATTEMPTS; attempt++) {
+            Document bucket = collection.find(Filters.eq("start", start)).first();
+            Map<Long, EnergyRecord> merged = new TreeMap<Long, EnergyRecord>();
+            if (bucket != null) {
+                for (EnergyRecord stored : unpack(bucket)) merged.put(stored.getTimestamp(), stored);
+            }
+            int stored = merged.size();
+            for (EnergyRecord sample : samples) {
+                if (!merged.containsKey(sample.getTimestamp())) merged.put(sample.getTimestamp(), sample);
+            }
+            if (merged.size() == stored) return true;
+
+            Document replacement = toBucket(start, new ArrayList<EnergyRecord>(merged.values()));
+            try {
+                if (bucket == null) {
+                    // expired or never written: the upsert lost a race with another writer
+                    collection.insertOne(replacement);
+                    return true;
+                }
+                Bson unchanged = Filters.and(Filters.eq("start", start), Filters.eq("count", bucket.get("count")));
+                if (collection.replaceOne(unchanged, replacement).getMatchedCount() > 0) return true;
+            } catch (MongoWriteException e) {
+                if (e.getCode() != DUPLICATE_KEY) throw e;
+            }
+        }
+        return false;
+    }
+
+    private static Document toBucket(long start, List<EnergyRecord> samples) {
+        Samples sorted = new Samples(start, samples);
+        EnergyRecord first = sorted.records.get(0);
+        return new Document("start", start)
+                .append("date", new Date(start))
+                .append("heure", first.getHeure())
+                .append("jour", first.getJour())
+                .append("weekend", first.getWeekend())
+                .append("last", sorted.last)
+                .append("count", sorted.offsets.size())
+                .append("t", sorted.offsets)
+                .append("actual", sorted.actual)
+                .append("predicted", sorted.predicted)
+                .append("cal", sorted.calendar)
+                .append("alerts", sorted.alerts)
+                .append("actualSum", sorted.actualSum)
+                .append("actualMin", sorted.actualMin)
+                .append("actualMax", sorted.actualMax)
+                .append("predictedSum", sorted.predictedSum)
+                .append("predictedMin", sorted.predictedMin)
+                .append("predictedMax", sorted.predictedMax);
+    }
+
+    /**
+     * Samples with from <= timestamp <= to (either bound may be null), newest first.
+     */
+    public List<EnergyRecord> find(Long from, Long to, int limit) {
+        List<Bson> range = new ArrayList<Bson>();
+        if (from != null) range.add(Filters.gte("start", bucketStart(from)));
+        if (to != null) range.add(Filters.lte("start", to));
+        Bson filter = range.isEmpty() ? new Document() : Filters.and(range);
+
+        List<EnergyRecord> samples = new ArrayList<EnergyRecord>();
+        for (Document bucket : collection.find(filter).sort(Sorts.descending("start"))) {
+            List<EnergyRecord> unpacked = unpack(bucket);
+            for (int i = unpacked.size() - 1; i >= 0 && samples.size() < limit; i--) {
+                EnergyRecord sample = unpacked.get(i);
+                long timestamp = sample.getTimestamp();
+                if ((from != null && timestamp < from) || (to != null && timestamp > to)) continue;
+                samples.add(sample);
+            }
+            if (samples.size() >= limit) break;
+        }
+        return samples;
+    }
+
+    /**
+     * Samples with timestamp > since, oldest first.
+     */
+    public List<EnergyRecord> findAfter(long since, int limit) {
+        List<EnergyRecord> samples = new ArrayList<EnergyRecord>();
+        for (Document bucket : collection.find(Filters.gte("start", bucketStart(since))).sort(Sorts.ascending("start"))) {
+            for (EnergyRecord sample : unpack(bucket)) {
+                if (sample.getTimestamp() <= since) continue;
+                samples.add(sample);
+                if (samples.size() >= limit) return samples;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Newest stored sample, or null if there is none.
+     */
+    public EnergyRecord latest() {
+        Document bucket = collection.find().sort(Sorts.descending("start")).first();
+        if (bucket == null) return null;
+        List<EnergyRecord> samples = unpack(bucket);
+        return samples.isEmpty() ? null : samples.get(samples.size() - 1);
+    }
+
+    public long countBuckets() {
+        return collection.countDocuments();
+    }
+
+    /**
+     * Samples of one bucket, oldest first.
+     */
+    @SuppressWarnings("unchecked")
+    static List<EnergyRecord> unpack(Document bucket) {
+        long start = ((Number) bucket.get("start")).longValue();
+        int heure = intOf(bucket, "heure");
+        int jour = intOf(bucket, "jour");
+        int weekend = intOf(bucket, "weekend");
+        List<Number> offsets = (List<Number>) bucket.get("t");
+        List<Number> actual = (List<Number>) bucket.get("actual");
+        List<Number> predicted = (List<Number>) bucket.get("predicted");
+        List<Number> calendar = (List<Number>) bucket.get("cal");
+        Set<Long> alerts = new HashSet<Long>();
+        Object alertList = bucket.get("alerts");
+        if (alertList instanceof List) {
+            for (Number offset : (List<Number>) alertList) alerts.add(offset.longValue());
+        }
+
+        List<EnergyRecord> samples = new ArrayList<EnergyRecord>(offsets.size());
+        for (int i = 0; i < offsets.size(); i++) {
+            long offset = offsets.get(i).longValue();
+            if (calendar != null) {
+                int code = calendar.get(i).intValue();
+                heure = code / 100;
+                jour = code / 10 % 10;
+                weekend = code % 10;
+            }
+            samples.add(new EnergyRecord(start + offset, heure, jour, weekend,
+                    actual.get(i).doubleValue(), predicted.get(i).doubleValue(), alerts.contains(offset)));
+        }
+        return samples;
+    }
+
+    static long bucketStart(long timestamp) {
+        return timestamp - Math.floorMod(timestamp, BUCKET_MS);
+    }
+
+    private static int intOf(Document bucket, String key) {
+        Object value = bucket.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    /* ------------------- Samples of one bucket, as stored ------------------- */
+
+    private static class Samples {
+        final List<EnergyRecord> records;
+        final List<Long> offsets;
+        final List<Double> actual;
+        final List<Double> predicted;
+        final List<Integer> calendar;
+        final List<Long> alerts = new ArrayList<Long>();
+        final long last;
+        double actualSum, actualMin = Double.POSITIVE_INFINITY, actualMax = Double.NEGATIVE_INFINITY;
+        double predictedSum, predictedMin = Double.POSITIVE_INFINITY, predictedMax = Double.NEGATIVE_INFINITY;
+
+        Samples(long start, List<EnergyRecord> samples) {
+            records = new ArrayList<EnergyRecord>(samples);
+            records.sort(new Comparator<EnergyRecord>() {
+                @Override
+                public int compare(EnergyRecord a, EnergyRecord b) {
+                    return Long.compare(a.getTimestamp(), b.getTimestamp());
+                }
+            });
+            offsets = new ArrayList<Long>(records.size());
+            actual = new ArrayList<Double>(records.size());
+            predicted = new ArrayList<Double>(records.size());
+            calendar = new ArrayList<Integer>(records.size());
+            for (EnergyRecord sample : records) {
+                long offset = sample.getTimestamp() - start;
+                double a = sample.getActual();
+                double p = sample.getPredicted();
+                offsets.add(offset);
+                actual.add(a);
+                predicted.add(p);
+                calendar.add(sample.getHeure() * 100 + sample.getJour() * 10 + sample.getWeekend());
+                if (sample.isHigh()) alerts.add(offset);
+                actualSum += a;
+                actualMin = Math.min(actualMin, a);
+                actualMax = Math.max(actualMax, a);
+                predictedSum += p;
+                predictedMin = Math.min(predictedMin, p);
+                predictedMax = Math.max(predictedMax, p);
+            }
+            last = records.get(records.size() - 1).getTimestamp();
+        }
+    }
+}
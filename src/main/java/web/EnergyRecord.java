@@ -0,0 +1,138 @@
+package web;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One energy sample, immutable, as it goes from the collector to the ring
+ * log, storage (see EnergyRecordCodec) and the JSON/SOAP responses.
+ */
+public final class EnergyRecord {
+
+    public static final String NORMAL = "NORMAL";
+    public static final String ELEVEE = "ELEVEE";
+
+    private static final List<String> FIELDS =
+            Arrays.asList("timestamp", "heure", "jour", "weekend", "actual", "predicted", "status");
+
+    private final long timestamp;
+    private final int heure;
+    private final int jour;
+    private final int weekend;
+    private final double actual;
+    private final double predicted;
+    private final boolean high;
+
+    public EnergyRecord(long timestamp, int heure, int jour, int weekend,
+                        double actual, double predicted, boolean high) {
+        this.timestamp = timestamp;
+        this.heure = heure;
+        this.jour = jour;
+        this.weekend = weekend;
+        this.actual = actual;
+        this.predicted = predicted;
+        this.high = high;
+    }
+
+    /**
+     * @param status "ELEVEE" for a consumption above the threshold, anything else is NORMAL
+     */
+    public EnergyRecord(long timestamp, int heure, int jour, int weekend,
+                        double actual, double predicted, String status) {
+        this(timestamp, heure, jour, weekend, actual, predicted, ELEVEE.equals(status));
+    }
+
+    public long getTimestamp() { return timestamp; }
+
+    public int getHeure() { return heure; }
+
+    public int getJour() { return jour; }
+
+    public int getWeekend() { return weekend; }
+
+    public double getActual() { return actual; }
+
+    public double getPredicted() { return predicted; }
+
+    public boolean isHigh() { return high; }
+
+    public String getStatus() { return high ? ELEVEE : NORMAL; }
+
+    public JSONObject toJSON() {
+        return toJSON(null);
+    }
+
+    /**
+     * @param fields fields to include, or null/empty for all fields
+     */
+    public JSONObject toJSON(Collection<String> fields) {
+        boolean all = fields == null || fields.isEmpty();
+        JSONObject json = new JSONObject();
+        if (all || fields.contains("timestamp")) json.put("timestamp", timestamp);
+        if (all || fields.contains("heure")) json.put("heure", heure);
+        if (all || fields.contains("jour")) json.put("jour", jour);
+        if (all || fields.contains("weekend")) json.put("weekend", weekend);
+        if (all || fields.contains("actual")) json.put("actual", actual);
+        if (all || fields.contains("predicted")) json.put("predicted", predicted);
+        if (all || fields.contains("status")) json.put("status", getStatus());
+        return json;
+    }
+
+    /**
+     * Same object as toJSON(fields), written to a JSON stream.
+     */
+    public void writeJSON(JsonStreamWriter out, Collection<String> fields) throws IOException {
+        boolean all = fields == null || fields.isEmpty();
+        out.beginObject();
+        if (all || fields.contains("timestamp")) out.name("timestamp").value(timestamp);
+        if (all || fields.contains("heure")) out.name("heure").value(heure);
+        if (all || fields.contains("jour")) out.name("jour").value(jour);
+        if (all || fields.contains("weekend")) out.name("weekend").value(weekend);
+        if (all || fields.contains("actual")) out.name("actual").value(actual);
+        if (all || fields.contains("predicted")) out.name("predicted").value(predicted);
+        if (all || fields.contains("status")) out.name("status").value(getStatus());
+        out.endObject();
+    }
+
+    /**
+     * Records as a columnar table with the same fields as writeJSON.
+     */
+    public static void writeColumnar(ColumnarWriter out, Map<String, Object> meta, List<EnergyRecord> records,
+                                     Collection<String> fields) throws IOException {
+        List<String> columns = new ArrayList<String>(FIELDS);
+        if (fields != null && !fields.isEmpty()) columns.retainAll(fields);
+        int n = records.size();
+        out.begin(meta, n, columns.size());
+        for (String column : columns) {
+            if ("timestamp".equals(column)) {
+                long[] values = new long[n];
+                for (int i = 0; i < n; i++) values[i] = records.get(i).timestamp;
+                out.timestamps(column, values);
+            } else if ("actual".equals(column) || "predicted".equals(column)) {
+                double[] values = new double[n];
+                for (int i = 0; i < n; i++) {
+                    EnergyRecord record = records.get(i);
+                    values[i] = "actual".equals(column) ? record.actual : record.predicted;
+                }
+                out.doubles(column, values);
+            } else if ("status".equals(column)) {
+                String[] values = new String[n];
+                for (int i = 0; i < n; i++) values[i] = records.get(i).getStatus();
+                out.strings(column, values);
+            } else {
+                long[] values = new long[n];
+                for (int i = 0; i < n; i++) {
+                    EnergyRecord record = records.get(i);
+                    values[i] = "heure".equals(column) ? record.heure : "jour".equals(column) ? record.jour : record.weekend;
+                }
+                out.integers(column, values);
+            }
+        }
+    }
+}
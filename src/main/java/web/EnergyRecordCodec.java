@@ -0,0 +1,102 @@
+package web;
+
+import com.mongodb.MongoClientSettings;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * Reads and writes EnergyRecord straight from/to BSON, without an
+ * intermediate Document. The layout is the one energy_history always had,
+ * plus "date" (the timestamp as a BSON date, for the retention TTL index)
+ * and the timestamp as _id, so that writing a record twice (a retried
+ * insert) fails on the _id index instead of storing it twice.
+ *
+ * Decoding accepts any numeric type, for documents written by older
+ * versions, and skips _id, date and unknown fields.
+ */
+public class EnergyRecordCodec implements Codec<EnergyRecord> {
+
+    /**
+     * The driver's default codecs plus this one, for
+     * collection.withDocumentClass(EnergyRecord.class).withCodecRegistry(REGISTRY).
+     */
+    public static final CodecRegistry REGISTRY = CodecRegistries.fromRegistries(
+            CodecRegistries.fromCodecs(new EnergyRecordCodec()),
+            MongoClientSettings.getDefaultCodecRegistry());
+
+    @Override
+    public void encode(BsonWriter writer, EnergyRecord record, EncoderContext context) {
+        writer.writeStartDocument();
+        writer.writeInt64("_id", record.getTimestamp());
+        writer.writeInt64("timestamp", record.getTimestamp());
+        writer.writeInt32("heure", record.getHeure());
+        writer.writeInt32("jour", record.getJour());
+        writer.writeInt32("weekend", record.getWeekend());
+        writer.writeDouble("actual", record.getActual());
+        writer.writeDouble("predicted", record.getPredicted());
+        writer.writeString("status", record.getStatus());
+        writer.writeDateTime("date", record.getTimestamp());
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public EnergyRecord decode(BsonReader reader, DecoderContext context) {
+        long timestamp = 0;
+        int heure = 0;
+        int jour = 0;
+        int weekend = 0;
+        double actual = 0;
+        double predicted = 0;
+        boolean high = false;
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if ("timestamp".equals(name)) {
+                timestamp = (long) readNumber(reader);
+            } else if ("heure".equals(name)) {
+                heure = (int) readNumber(reader);
+            } else if ("jour".equals(name)) {
+                jour = (int) readNumber(reader);
+            } else if ("weekend".equals(name)) {
+                weekend = (int) readNumber(reader);
+            } else if ("actual".equals(name)) {
+                actual = readNumber(reader);
+            } else if ("predicted".equals(name)) {
+                predicted = readNumber(reader);
+            } else if ("status".equals(name) && reader.getCurrentBsonType() == BsonType.STRING) {
+                high = EnergyRecord.ELEVEE.equals(reader.readString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return new EnergyRecord(timestamp, heure, jour, weekend, actual, predicted, high);
+    }
+
+    @Override
+    public Class<EnergyRecord> getEncoderClass() {
+        return EnergyRecord.class;
+    }
+
+    private static double readNumber(BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return reader.readInt64();
+            case DOUBLE:
+                return reader.readDouble();
+            default:
+                reader.skipValue();
+                return 0;
+        }
+    }
+}
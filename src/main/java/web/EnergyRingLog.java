@@ -0,0 +1,265 @@
+package web;
+
+import metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent energy samples in a memory-mapped ring file, independent
+ * of the storage backend, so realtime and recent history keep working when
+ * MongoDB is slow or down, and survive restarts.
+ *
+ * Fixed 32-byte records (timestamp, actual, predicted as 8 bytes each, then
+ * heure, jour, weekend and status as one byte each) after a 32-byte header
+ * (magic, version, capacity, record size, count of appended records,
+ * newest missing timestamp).
+ * One writer (the collector) appends; readers decode straight from the
+ * mapping and check afterwards that the writer did not wrap over what they read.
+ * Once the ring is full, the oldest slot is the next one overwritten, so
+ * readers see at most capacity - 1 records.
+ *
+ * Only records newer than the newest one can be appended. The header also
+ * keeps the newest timestamp stored without going through the ring (an out
+ * of order or externally timestamped record): reads reaching back to it
+ * return null and are served by storage.
+ *
+ * -Dsmarthome.ring.file (data/energy_ring.bin), -Dsmarthome.ring.capacity
+ * (17280 records, 24 h at one sample every 5 s).
+ */
+public class EnergyRingLog {
+
+    private static final int MAGIC = 0x53485247; // "SHRG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 32;
+    private static final int COUNT_OFFSET = 16;
+    private static final int MISSING_OFFSET = 24;
+    // tolerated clock difference for timestamps ahead of this machine
+    public static final long MAX_CLOCK_SKEW_MS = 60000L;
+    private static final int READ_ATTEMPTS = 3;
+
+    private final File file;
+    private final int capacity;
+    private RandomAccessFile raf;
+    private volatile MappedByteBuffer buffer;
+    private volatile long count;
+    // 0 when no record is missing
+    private volatile long newestMissing;
+
+    public EnergyRingLog(File file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    public static EnergyRingLog fromSystemProperties() {
+        return new EnergyRingLog(new File(System.getProperty("smarthome.ring.file", "data/energy_ring.bin")),
+                Integer.getInteger("smarthome.ring.capacity", 17280));
+    }
+
+    /**
+     * Maps the file, resuming its records when the layout matches. On failure
+     * the log stays disabled: appends are dropped and reads return null.
+     */
+    public synchronized void open() {
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("cannot create " + parent);
+            }
+            raf = new RandomAccessFile(file, "rw");
+            long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+            boolean resume = raf.length() == size;
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (resume && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+                    && buffer.getInt(8) == capacity && buffer.getInt(12) == RECORD_SIZE) {
+                count = buffer.getLong(COUNT_OFFSET);
+                newestMissing = buffer.getLong(MISSING_OFFSET);
+                dropFutureRecords();
+            } else {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, capacity);
+                buffer.putInt(12, RECORD_SIZE);
+                buffer.putLong(COUNT_OFFSET, 0L);
+                buffer.putLong(MISSING_OFFSET, 0L);
+                count = 0;
+                newestMissing = 0;
+            }
+            System.out.println("Energy ring log: " + file + " (" + Math.min(count, capacity) + "/" + capacity + " records)");
+        } catch (Exception e) {
+            System.err.println("Energy ring log disabled: " + e.getMessage());
+            buffer = null;
+        }
+    }
+
+    public synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        try {
+            if (raf != null) raf.close();
+        } catch (IOException ignored) {
+        }
+        raf = null;
+    }
+
+    /**
+     * Records ahead of the clock, written before timestamps were checked, would
+     * keep every later sample out of the ring: drop them.
+     */
+    private void dropFutureRecords() {
+        long now = System.currentTimeMillis() + MAX_CLOCK_SKEW_MS;
+        long end = count;
+        long oldest = Math.max(0, end - capacity + 1);
+        while (end > oldest && buffer.getLong(offsetOf(end - 1)) > now) end--;
+        if (end < count) {
+            System.err.println("Energy ring log: dropped " + (count - end) + " records dated in the future");
+            buffer.putLong(COUNT_OFFSET, end);
+            count = end;
+        }
+    }
+
+    /**
+     * Appends one record. Records older than the newest one are left to
+     * storage (reads rely on timestamps increasing along the ring) and marked
+     * missing.
+     */
+    public synchronized void append(EnergyRecord record) {
+        if (buffer == null) return;
+        long timestamp = record.getTimestamp();
+        if (count > 0 && timestamp <= buffer.getLong(offsetOf(count - 1))) {
+            markMissing(timestamp);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            int offset = offsetOf(count);
+            buffer.putLong(offset, timestamp);
+            buffer.putDouble(offset + 8, record.getActual());
+            buffer.putDouble(offset + 16, record.getPredicted());
+            buffer.put(offset + 24, (byte) record.getHeure());
+            buffer.put(offset + 25, (byte) record.getJour());
+            buffer.put(offset + 26, (byte) record.getWeekend());
+            buffer.put(offset + 27, (byte) (record.isHigh() ? 1 : 0));
+            buffer.putLong(COUNT_OFFSET, count + 1);
+            count = count + 1;
+        } finally {
+            Metrics.time("ring.append", start);
+        }
+    }
+
+    /**
+     * Notes a record stored without being appended: reads covering its
+     * timestamp go to storage until it is older than the ring.
+     */
+    public synchronized void markMissing(long timestamp) {
+        if (buffer == null || timestamp <= newestMissing) return;
+        buffer.putLong(MISSING_OFFSET, timestamp);
+        newestMissing = timestamp;
+    }
+
+    /**
+     * Newest record, or null if the log is empty or disabled.
+     */
+    public EnergyRecord latest() {
+        List<EnergyRecord> records = read(null, null, 1);
+        return records == null || records.isEmpty() ? null : records.get(0);
+    }
+
+    /**
+     * Records with from <= timestamp <= to (either bound may be null), newest
+     * first, like StorageBackend.getEnergyHistory. Returns null when the
+     * answer may need records older than the ring holds, so the caller asks
+     * the storage backend instead.
+     */
+    public List<EnergyRecord> read(Long from, Long to, int limit) {
+        MappedByteBuffer mapped = buffer;
+        if (mapped == null) return null;
+        long start = System.nanoTime();
+        try {
+            for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+                long end = count;
+                // the slot of index end - capacity is the next one the writer overwrites: not readable
+                long oldest = Math.max(0, end - capacity + 1);
+                List<EnergyRecord> records = new ArrayList<EnergyRecord>();
+                boolean complete = false;
+                long index = end - 1;
+                for (; index >= oldest; index--) {
+                    long timestamp = mapped.getLong(offsetOf(index));
+                    if (to != null && timestamp > to) continue;
+                    if (from != null && timestamp < from) {
+                        complete = true;
+                        break;
+                    }
+                    records.add(decode(mapped, offsetOf(index)));
+                    if (records.size() >= limit) {
+                        complete = true;
+                        break;
+                    }
+                }
+                // every slot read must still hold the record it held when read; the
+                // slot of index count - capacity may be being overwritten right now
+                if (Math.max(index, oldest) <= count - capacity) continue;
+                // ran out of records before the bound or the limit: older ones may be in storage
+                if (!complete) return null;
+                // a record of the window is in storage only
+                long covered = from != null && records.size() < limit ? from
+                        : records.isEmpty() ? Long.MAX_VALUE : records.get(records.size() - 1).getTimestamp();
+                long missing = newestMissing;
+                return missing != 0 && missing >= covered ? null : records;
+            }
+            return null;
+        } finally {
+            Metrics.time("ring.read", start);
+        }
+    }
+
+    /**
+     * Up to limit records with timestamp > since, oldest first, so that
+     * polling with the last timestamp returned never skips a record. Returns
+     * null when records after since may be older than the ring holds.
+     */
+    public List<EnergyRecord> readAfter(long since, int limit) {
+        MappedByteBuffer mapped = buffer;
+        if (mapped == null) return null;
+        long start = System.nanoTime();
+        try {
+            for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+                long end = count;
+                long oldest = Math.max(0, end - capacity + 1);
+                long first = end;
+                while (first > oldest && mapped.getLong(offsetOf(first - 1)) > since) first--;
+                // no record at or before since in the ring: the ones right after it may be in storage only
+                if (first == oldest) return null;
+                List<EnergyRecord> records = new ArrayList<EnergyRecord>();
+                for (long index = first; index < end && records.size() < limit; index++) {
+                    records.add(decode(mapped, offsetOf(index)));
+                }
+                // the lowest slot read (first - 1) must not have been overwritten meanwhile
+                if (first - 1 <= count - capacity) continue;
+                long missing = newestMissing;
+                return missing != 0 && missing > since ? null : records;
+            }
+            return null;
+        } finally {
+            Metrics.time("ring.readAfter", start);
+        }
+    }
+
+    private static EnergyRecord decode(MappedByteBuffer mapped, int offset) {
+        return new EnergyRecord(mapped.getLong(offset), mapped.get(offset + 24), mapped.get(offset + 25),
+                mapped.get(offset + 26), mapped.getDouble(offset + 8), mapped.getDouble(offset + 16),
+                mapped.get(offset + 27) == 1);
+    }
+
+    private int offsetOf(long index) {
+        return HEADER_SIZE + (int) (index % capacity) * RECORD_SIZE;
+    }
+}
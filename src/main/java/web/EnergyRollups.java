@@ -0,0 +1,300 @@
+package web;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import metrics.Metrics;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * Minute, hour and day aggregates of energy_history, kept up to date as
+ * records are written, plus the retention of every resolution.
+ *
+ * A rollup document holds one bucket: count, and sum/min/max of the actual
+ * and predicted consumption; averages are derived on read. Each flushed
+ * batch is aggregated in memory first, then applied with one unordered bulk
+ * upsert ($inc/$min/$max) per resolution. Buckets are aligned on UTC.
+ *
+ * Retention is a TTL index on the "date" field of each collection, in days
+ * (0 keeps the data forever): smarthome.retention.rawDays (7),
+ * smarthome.retention.minuteDays (90), smarthome.retention.hourDays (730),
+ * smarthome.retention.dayDays (0).
+ */
+public class EnergyRollups {
+
+    public enum Resolution {
+        // RAW points are one collector tick apart
+        RAW(5000L, null, "smarthome.retention.rawDays", 7),
+        MINUTE(60000L, "energy_rollup_minute", "smarthome.retention.minuteDays", 90),
+        HOUR(3600000L, "energy_rollup_hour", "smarthome.retention.hourDays", 730),
+        DAY(86400000L, "energy_rollup_day", "smarthome.retention.dayDays", 0);
+
+        final long bucketMs;
+        final String collection;
+        final long retentionMs;
+
+        Resolution(long bucketMs, String collection, String retentionProperty, long defaultDays) {
+            this.bucketMs = bucketMs;
+            this.collection = collection;
+            this.retentionMs = TimeUnit.DAYS.toMillis(Long.getLong(retentionProperty, defaultDays));
+        }
+
+        /**
+         * "raw", "minute", "hour" or "day" (any case); null or "auto" returns null.
+         */
+        public static Resolution parse(String name) {
+            if (name == null || "auto".equalsIgnoreCase(name)) return null;
+            return valueOf(name.toUpperCase());
+        }
+
+        /**
+         * Finest resolution that returns at most maxPoints points over
+         * [from, to] and still keeps data as old as from. Without a lower
+         * bound the newest raw records are what is asked for.
+         */
+        public static Resolution pick(Long from, Long to, int maxPoints) {
+            if (from == null) return RAW;
+            long now = System.currentTimeMillis();
+            long end = to != null ? to : now;
+            long range = Math.max(0, end - from);
+            for (Resolution resolution : values()) {
+                boolean fits = range / resolution.bucketMs <= Math.max(1, maxPoints);
+                boolean retained = resolution.retentionMs <= 0 || now - from <= resolution.retentionMs;
+                if (fits && retained) return resolution;
+            }
+            return DAY;
+        }
+
+        long bucketStart(long timestamp) {
+            return timestamp - Math.floorMod(timestamp, bucketMs);
+        }
+    }
+
+    private static final String TTL_INDEX = "date_ttl";
+    private static final List<Resolution> ROLLUPS = Arrays.asList(Resolution.MINUTE, Resolution.HOUR, Resolution.DAY);
+
+    private final MongoDatabase database;
+    private final String rawCollectionName;
+    private final MongoCollection<Document> rawCollection;
+    private final Map<Resolution, MongoCollection<Document>> collections = new HashMap<Resolution, MongoCollection<Document>>();
+
+    public EnergyRollups(MongoDatabase database, String rawCollectionName) {
+        this.database = database;
+        this.rawCollectionName = rawCollectionName;
+        this.rawCollection = database.getCollection(rawCollectionName);
+        for (Resolution resolution : ROLLUPS) {
+            collections.put(resolution, database.getCollection(resolution.collection));
+        }
+    }
+
+    /**
+     * Indexes and TTLs, dates for raw records written before retention
+     * existed, and a one-time rebuild of empty rollups from the raw history.
+     * Must run before records are written.
+     */
+    public void init() {
+        // records from older versions have no "date" for the TTL index to expire
+        rawCollection.updateMany(Filters.and(Filters.exists("date", false), Filters.type("timestamp", "number")),
+                Collections.singletonList(new Document("$set",
+                        new Document("date", new Document("$toDate", "$timestamp")))));
+        ensureTtl(database, rawCollectionName, Resolution.RAW.retentionMs);
+
+        for (Resolution resolution : ROLLUPS) {
+            MongoCollection<Document> collection = collections.get(resolution);
+            collection.createIndex(Indexes.descending("timestamp"),
+                    new IndexOptions().name("timestamp_desc").unique(true));
+            ensureTtl(database, resolution.collection, resolution.retentionMs);
+            if (collection.estimatedDocumentCount() == 0 && rawCollection.estimatedDocumentCount() > 0) {
+                rebuild(resolution);
+            }
+        }
+    }
+
+    /**
+     * Folds a batch of raw records (already written) into every rollup.
+     */
+    public void apply(List<EnergyRecord> batch) {
+        for (Resolution resolution : ROLLUPS) {
+            long start = System.nanoTime();
+            try {
+                Map<Long, Bucket> buckets = new TreeMap<Long, Bucket>();
+                for (EnergyRecord record : batch) {
+                    long bucketStart = resolution.bucketStart(record.getTimestamp());
+                    Bucket bucket = buckets.get(bucketStart);
+                    if (bucket == null) {
+                        bucket = new Bucket();
+                        buckets.put(bucketStart, bucket);
+                    }
+                    bucket.add(record);
+                }
+                if (buckets.isEmpty()) continue;
+
+                List<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>(buckets.size());
+                for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+                    updates.add(new UpdateOneModel<Document>(eq("timestamp", entry.getKey()),
+                            entry.getValue().toUpdate(entry.getKey()), new UpdateOptions().upsert(true)));
+                }
+                collections.get(resolution).bulkWrite(updates, new BulkWriteOptions().ordered(false));
+            } catch (Exception e) {
+                Metrics.error("mongo.rollup");
+                System.err.println("Failed to update " + resolution.collection + ": " + e.getMessage());
+            } finally {
+                Metrics.time("mongo.rollup", start);
+            }
+        }
+    }
+
+    /**
+     * Buckets with from <= bucket start <= to (from is widened to the start of
+     * its bucket), newest first, shaped like raw records: timestamp, actual and
+     * predicted (averages), plus count and the min/max/sum of both.
+     */
+    public List<Map<String, Object>> find(Resolution resolution, Long from, Long to, int limit) {
+        List<Bson> range = new ArrayList<Bson>();
+        if (from != null) range.add(Filters.gte("timestamp", resolution.bucketStart(from)));
+        if (to != null) range.add(Filters.lte("timestamp", to));
+        Bson filter = range.isEmpty() ? new Document() : Filters.and(range);
+
+        List<Map<String, Object>> points = new ArrayList<Map<String, Object>>();
+        for (Document doc : collections.get(resolution).find(filter)
+                .sort(Sorts.descending("timestamp"))
+                .limit(limit)) {
+            points.add(toPoint(doc));
+        }
+        return points;
+    }
+
+    static Map<String, Object> toPoint(Document doc) {
+        long count = ((Number) doc.get("count")).longValue();
+        Map<String, Object> point = new HashMap<String, Object>();
+        point.put("timestamp", doc.get("timestamp"));
+        point.put("count", count);
+        for (String metric : Arrays.asList("actual", "predicted")) {
+            double sum = ((Number) doc.get(metric + "Sum")).doubleValue();
+            point.put(metric, round(count > 0 ? sum / count : 0.0));
+            point.put(metric + "Min", doc.get(metric + "Min"));
+            point.put(metric + "Max", doc.get(metric + "Max"));
+            point.put(metric + "Sum", round(sum));
+        }
+        return point;
+    }
+
+    /**
+     * Recomputes a rollup from the raw history with one aggregation ($group,
+     * then $merge into the rollup collection).
+     */
+    private void rebuild(Resolution resolution) {
+        long start = System.nanoTime();
+        try {
+            Document bucketStart = new Document("$subtract", Arrays.asList("$timestamp",
+                    new Document("$mod", Arrays.asList("$timestamp", resolution.bucketMs))));
+            Document group = new Document("_id", bucketStart).append("count", new Document("$sum", 1));
+            Document project = new Document("_id", 0).append("timestamp", "$_id")
+                    .append("date", new Document("$toDate", "$_id")).append("count", 1);
+            for (String metric : Arrays.asList("actual", "predicted")) {
+                group.append(metric + "Sum", new Document("$sum", "$" + metric))
+                        .append(metric + "Min", new Document("$min", "$" + metric))
+                        .append(metric + "Max", new Document("$max", "$" + metric));
+                project.append(metric + "Sum", 1).append(metric + "Min", 1).append(metric + "Max", 1);
+            }
+            rawCollection.aggregate(Arrays.asList(
+                    new Document("$match", new Document("timestamp", new Document("$type", "number"))),
+                    new Document("$group", group),
+                    new Document("$project", project),
+                    new Document("$merge", new Document("into", resolution.collection).append("on", "timestamp")
+                            .append("whenMatched", "replace").append("whenNotMatched", "insert"))))
+                    .allowDiskUse(true)
+                    .toCollection();
+            System.out.println("Rebuilt " + resolution.collection + " from " + rawCollectionName);
+        } catch (Exception e) {
+            Metrics.error("mongo.rollupRebuild");
+            System.err.println("Failed to rebuild " + resolution.collection + ": " + e.getMessage());
+        } finally {
+            Metrics.time("mongo.rollupRebuild", start);
+        }
+    }
+
+    /**
+     * Creates the TTL index, adjusts it with collMod when the retention
+     * changed since it was created, or drops it when retention is 0.
+     */
+    static void ensureTtl(MongoDatabase database, String collectionName, long retentionMs) {
+        MongoCollection<Document> collection = database.getCollection(collectionName);
+        if (retentionMs <= 0) {
+            try {
+                collection.dropIndex(TTL_INDEX);
+            } catch (Exception ignored) {
+                // no TTL index: nothing expires already
+            }
+            return;
+        }
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(retentionMs);
+        try {
+            collection.createIndex(Indexes.ascending("date"),
+                    new IndexOptions().name(TTL_INDEX).expireAfter(seconds, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            database.runCommand(new Document("collMod", collectionName)
+                    .append("index", new Document("name", TTL_INDEX).append("expireAfterSeconds", seconds)));
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    /* ------------------- In-memory bucket of one batch ------------------- */
+
+    private static class Bucket {
+        long count;
+        final double[] sum = new double[2];
+        final double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        final double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+        void add(EnergyRecord record) {
+            count++;
+            add(0, record.getActual());
+            add(1, record.getPredicted());
+        }
+
+        private void add(int metric, double v) {
+            sum[metric] += v;
+            min[metric] = Math.min(min[metric], v);
+            max[metric] = Math.max(max[metric], v);
+        }
+
+        Bson toUpdate(long bucketStart) {
+            return Updates.combine(
+                    Updates.setOnInsert("date", new Date(bucketStart)),
+                    Updates.inc("count", count),
+                    Updates.inc("actualSum", sum[0]),
+                    Updates.min("actualMin", min[0]),
+                    Updates.max("actualMax", max[0]),
+                    Updates.inc("predictedSum", sum[1]),
+                    Updates.min("predictedMin", min[1]),
+                    Updates.max("predictedMax", max[1]));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package web;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind buffer for energy records.
+ *
+ * Records are queued in a bounded queue and handed to a Writer (insertMany,
+ * or hourly buckets, see MongoDBManager) by a single flusher thread, either when batchSize records are waiting or
+ * flushIntervalMs after the first one arrived. When the queue is full,
+ * add() blocks the caller for up to offerTimeoutMs (backpressure) before
+ * giving up. close() writes everything still queued. A failed write is
+ * retried for the records the Writer reports as not stored, and what was
+ * stored of every batch, even one given up on, is folded into the rollups
+ * (see EnergyRollups).
+ */
+public class EnergyWriteBuffer {
+
+    /**
+     * Stores one batch. Returns the records that were not stored, to be
+     * retried (empty when the whole batch is), or throws to have the whole
+     * batch retried; writing a record already stored must not store it twice.
+     */
+    public interface Writer {
+        List<EnergyRecord> write(List<EnergyRecord> batch) throws Exception;
+    }
+
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+
+    private final Writer writer;
+    private final EnergyRollups rollups;
+    private final BlockingQueue<EnergyRecord> queue;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final long offerTimeoutMs;
+    private final Thread flusher;
+    private volatile boolean running = true;
+    private volatile EnergyRecord latest;
+
+    public EnergyWriteBuffer(Writer writer, EnergyRollups rollups, int capacity,
+                             int batchSize, long flushIntervalMs, long offerTimeoutMs) {
+        this.writer = writer;
+        this.rollups = rollups;
+        this.queue = new ArrayBlockingQueue<EnergyRecord>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.offerTimeoutMs = offerTimeoutMs;
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "energy-write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Buffer sizes from system properties:
+     * smarthome.energy.bufferCapacity, smarthome.energy.batchSize, smarthome.energy.flushMs,
+     * smarthome.energy.offerTimeoutMs.
+     */
+    public static EnergyWriteBuffer fromSystemProperties(Writer writer, EnergyRollups rollups) {
+        return new EnergyWriteBuffer(writer, rollups,
+                Integer.getInteger("smarthome.energy.bufferCapacity", 10000),
+                Integer.getInteger("smarthome.energy.batchSize", 100),
+                Long.getLong("smarthome.energy.flushMs", 1000L),
+                Long.getLong("smarthome.energy.offerTimeoutMs", 2000L));
+    }
+
+    /**
+     * Queues a record. Returns false if the buffer stayed full for offerTimeoutMs
+     * or is closed.
+     */
+    public boolean add(EnergyRecord record) throws InterruptedException {
+        if (!running) return false;
+        if (!queue.offer(record, offerTimeoutMs, TimeUnit.MILLISECONDS)) return false;
+        EnergyRecord current = latest;
+        if (current == null || record.getTimestamp() >= current.getTimestamp()) {
+            latest = record;
+        }
+        return true;
+    }
+
+    /**
+     * Newest record accepted by this buffer (written or not), or null if none yet.
+     */
+    public EnergyRecord getLatest() {
+        return latest;
+    }
+
+    public int pendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting records and writes what is still queued.
+     */
+    public void close() {
+        running = false;
+        // the flusher notices within flushIntervalMs; interrupting could abort a write in progress
+        try {
+            flusher.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushLoop() {
+        List<EnergyRecord> batch = new ArrayList<EnergyRecord>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                EnergyRecord first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + flushIntervalMs;
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long wait = deadline - System.currentTimeMillis();
+                    if (batch.size() >= batchSize || wait <= 0) break;
+                    EnergyRecord next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<EnergyRecord> batch) {
+        List<EnergyRecord> pending = batch;
+        for (int attempt = 1; attempt <= MAX_WRITE_ATTEMPTS; attempt++) {
+            try {
+                pending = writer.write(new ArrayList<EnergyRecord>(pending));
+                if (pending.isEmpty()) break;
+                System.err.println("Failed to write " + pending.size() + " of " + batch.size()
+                        + " energy records (attempt " + attempt + ")");
+            } catch (Exception e) {
+                System.err.println("Failed to write " + pending.size() + " energy records (attempt "
+                        + attempt + "): " + e.getMessage());
+            }
+            if (attempt == MAX_WRITE_ATTEMPTS) break;
+            try {
+                Thread.sleep(200L * attempt);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        List<EnergyRecord> written = batch;
+        if (!pending.isEmpty()) {
+            System.err.println("Dropped " + pending.size() + " energy records after " + MAX_WRITE_ATTEMPTS + " attempts.");
+            Set<EnergyRecord> dropped = Collections.newSetFromMap(new IdentityHashMap<EnergyRecord, Boolean>());
+            dropped.addAll(pending);
+            written = new ArrayList<EnergyRecord>(batch.size() - dropped.size());
+            for (EnergyRecord record : batch) {
+                if (!dropped.contains(record)) written.add(record);
+            }
+        }
+        if (rollups != null && !written.isEmpty()) rollups.apply(written);
+    }
+}
@@ -0,0 +1,222 @@
+package web;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-Sent Events fan-out for /api/stream.
+ *
+ * Each change (new energy record, device state, notification, threshold) is
+ * encoded once and queued to every connected dashboard. Every client has its
+ * own bounded queue drained on a shared pool, so a slow browser is dropped
+ * instead of holding up the collector or the other clients.
+ *
+ * Events: "energy" (record), "device" (array of changed devices),
+ * "notification" (notification), "threshold" ({threshold}).
+ */
+public class EventStream {
+
+    private static final int CLIENT_QUEUE_SIZE = 64;
+    private static final long HEARTBEAT_PERIOD_S = 15;
+    private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final EventStream shared = new EventStream();
+
+    private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+    private final AtomicLong eventIds = new AtomicLong();
+    private final ExecutorService writers = Executors.newCachedThreadPool(daemonThreads("sse-writer"));
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(daemonThreads("sse-heartbeat"));
+
+    private EventStream() {
+        heartbeat.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                broadcast(HEARTBEAT);
+            }
+        }, HEARTBEAT_PERIOD_S, HEARTBEAT_PERIOD_S, TimeUnit.SECONDS);
+    }
+
+    public static EventStream getShared() {
+        return shared;
+    }
+
+    /**
+     * Turns the exchange into an open event stream. The exchange is kept open
+     * after the handler returns, so no HTTP worker thread is held per client.
+     */
+    public void register(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+        exchange.getResponseHeaders().add("Connection", "keep-alive");
+        exchange.sendResponseHeaders(200, 0);
+        Client client = new Client(exchange);
+        clients.add(client);
+        client.enqueue("retry: 5000\n\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int clientCount() {
+        return clients.size();
+    }
+
+    /* ------------------- Publishing ------------------- */
+
+    public void publishEnergyRecord(EnergyRecord record) {
+        publish("energy", record.toJSON().toString());
+    }
+
+    public void publishNotification(Map<String, Object> notification) {
+        publish("notification", new JSONObject(notification).toString());
+    }
+
+    public void publishThreshold(double threshold) {
+        JSONObject json = new JSONObject();
+        json.put("threshold", threshold);
+        publish("threshold", json.toString());
+    }
+
+    public void publishDevices(List<Device> devices) {
+        if (devices.isEmpty() || clients.isEmpty()) return;
+        JSONArray changed = new JSONArray();
+        for (Device device : devices) {
+            JSONObject json = deviceJson(device.getName(), device.getBaseConsumption(), device.isOn());
+            if (device.getGroup() != null) json.put("group", device.getGroup());
+            changed.put(json);
+        }
+        publish("device", changed.toString());
+    }
+
+    public void publishDevice(String name, double consumption, boolean isOn) {
+        if (clients.isEmpty()) return;
+        publish("device", new JSONArray().put(deviceJson(name, consumption, isOn)).toString());
+    }
+
+    public void publishDeviceRemoved(String name) {
+        if (clients.isEmpty()) return;
+        JSONObject json = new JSONObject();
+        json.put("name", name);
+        json.put("removed", true);
+        publish("device", new JSONArray().put(json).toString());
+    }
+
+    public void publish(String event, String data) {
+        if (clients.isEmpty()) return;
+        StringBuilder frame = new StringBuilder(data.length() + 48);
+        frame.append("id: ").append(eventIds.incrementAndGet()).append('\n');
+        frame.append("event: ").append(event).append('\n');
+        frame.append("data: ").append(data).append("\n\n");
+        broadcast(frame.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void close() {
+        heartbeat.shutdownNow();
+        for (Client client : clients) client.close();
+        clients.clear();
+        writers.shutdownNow();
+    }
+
+    private void broadcast(byte[] frame) {
+        for (Client client : clients) {
+            client.enqueue(frame);
+        }
+    }
+
+    private static JSONObject deviceJson(String name, double consumption, boolean isOn) {
+        // same field names as /api/devices
+        JSONObject json = new JSONObject();
+        json.put("name", name);
+        json.put("consumption", consumption);
+        json.put("isOn", isOn);
+        return json;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /* ------------------- Client ------------------- */
+
+    private class Client implements Runnable {
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        private final BlockingQueue<byte[]> pending = new ArrayBlockingQueue<byte[]>(CLIENT_QUEUE_SIZE);
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean closed;
+
+        Client(HttpExchange exchange) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+        }
+
+        void enqueue(byte[] frame) {
+            if (closed) return;
+            if (!pending.offer(frame)) {
+                // too far behind, let the browser reconnect and resync
+                close();
+                return;
+            }
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    writers.execute(this);
+                } catch (Exception e) {
+                    close();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    byte[] frame;
+                    while ((frame = pending.poll()) != null) {
+                        out.write(frame);
+                    }
+                    out.flush();
+                    draining.set(false);
+                    // a frame may have been queued after the last poll
+                    if (pending.isEmpty() || !draining.compareAndSet(false, true)) return;
+                }
+            } catch (IOException e) {
+                draining.set(false);
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            clients.remove(this);
+            pending.clear();
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // client already gone
+            }
+            exchange.close();
+        }
+    }
+}
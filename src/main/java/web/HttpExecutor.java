@@ -0,0 +1,161 @@
+package web;
+
+import metrics.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor of the REST server, chosen with -Dsmarthome.http.executor:
+ *  - "fixed" (default): smarthome.http.threads threads (10), unbounded queue, as before;
+ *  - "bounded": same threads, at most smarthome.http.queue (100) requests waiting;
+ *  - "virtual": one virtual thread per request (JDK 21+, falls back to
+ *    "bounded" on older JVMs), at most smarthome.http.maxInFlight (1000) at once.
+ *
+ * A request over the limit is not queued: it runs on the HttpServer
+ * dispatcher thread with isShedding() true, and the handler answers 503
+ * straight away (see WebServer.TimedHandler), so a slow backend cannot
+ * pile up requests behind it.
+ */
+public class HttpExecutor implements Executor {
+
+    public enum Mode { FIXED, BOUNDED, VIRTUAL }
+
+    private static final ThreadLocal<Boolean> SHEDDING = new ThreadLocal<Boolean>();
+
+    private final Mode mode;
+    private final ExecutorService delegate;
+    // VIRTUAL only: permits for requests in flight
+    private final Semaphore inFlight;
+    private final AtomicInteger running = new AtomicInteger();
+
+    private HttpExecutor(Mode mode, ExecutorService delegate, Semaphore inFlight) {
+        this.mode = mode;
+        this.delegate = delegate;
+        this.inFlight = inFlight;
+    }
+
+    public static HttpExecutor fromSystemProperties() {
+        Mode mode = Mode.valueOf(System.getProperty("smarthome.http.executor", "fixed").toUpperCase());
+        int threads = Integer.getInteger("smarthome.http.threads", 10);
+        if (mode == Mode.VIRTUAL) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                return new HttpExecutor(mode, virtual, new Semaphore(Integer.getInteger("smarthome.http.maxInFlight", 1000)));
+            }
+            System.err.println("Virtual threads need JDK 21 or later; using the bounded HTTP executor.");
+            mode = Mode.BOUNDED;
+        }
+        if (mode == Mode.BOUNDED) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(Integer.getInteger("smarthome.http.queue", 100)),
+                    namedThreads(), new ThreadPoolExecutor.AbortPolicy());
+            return new HttpExecutor(mode, pool, null);
+        }
+        return new HttpExecutor(mode, Executors.newFixedThreadPool(threads, namedThreads()), null);
+    }
+
+    /**
+     * True while a rejected request runs on the dispatcher thread.
+     */
+    public static boolean isShedding() {
+        return SHEDDING.get() != null;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    @Override
+    public void execute(final Runnable exchange) {
+        if (inFlight != null && !inFlight.tryAcquire()) {
+            shed(exchange);
+            return;
+        }
+        try {
+            delegate.execute(new Runnable() {
+                @Override
+                public void run() {
+                    running.incrementAndGet();
+                    try {
+                        exchange.run();
+                    } finally {
+                        running.decrementAndGet();
+                        if (inFlight != null) inFlight.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (inFlight != null) inFlight.release();
+            shed(exchange);
+        }
+    }
+
+    private void shed(Runnable exchange) {
+        Metrics.increment("http_rejected");
+        SHEDDING.set(Boolean.TRUE);
+        try {
+            exchange.run();
+        } finally {
+            SHEDDING.remove();
+        }
+    }
+
+    /**
+     * The mode as a gauge set to 1 (smarthome_http_executor_bounded...),
+     * requests running and, for the thread pools, requests waiting.
+     */
+    public void registerGauges() {
+        Metrics.gauge("http_executor_" + mode.name().toLowerCase(), new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return 1;
+            }
+        });
+        Metrics.gauge("http_requests_running", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return running.get();
+            }
+        });
+        if (delegate instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor pool = (ThreadPoolExecutor) delegate;
+            Metrics.gauge("http_requests_queued", new Metrics.Gauge() {
+                @Override
+                public double value() {
+                    return pool.getQueue().size();
+                }
+            });
+        }
+    }
+
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedThreads() {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                return new Thread(task, "http-" + count.incrementAndGet());
+            }
+        };
+    }
+}
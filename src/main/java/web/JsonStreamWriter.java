@@ -0,0 +1,158 @@
+package web;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Writes JSON to a stream as it is produced, without building an org.json
+ * tree or the whole response in memory. Commas are inserted automatically;
+ * the caller is trusted to nest begin/end calls correctly.
+ */
+public class JsonStreamWriter implements Closeable {
+
+    private static final int MAX_DEPTH = 32;
+
+    private final Writer out;
+    // per nesting level: nothing written yet at that level
+    private final boolean[] empty = new boolean[MAX_DEPTH];
+    private int depth;
+    private boolean afterName;
+
+    public JsonStreamWriter(OutputStream stream) {
+        this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 8192);
+    }
+
+    public JsonStreamWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonStreamWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonStreamWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonStreamWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonStreamWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonStreamWriter value(String value) throws IOException {
+        separate();
+        if (value == null) out.write("null");
+        else string(value);
+        return this;
+    }
+
+    public JsonStreamWriter value(long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * NaN and infinities, which JSON cannot represent, are written as null.
+     */
+    public JsonStreamWriter value(double value) throws IOException {
+        separate();
+        out.write(Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value));
+        return this;
+    }
+
+    public JsonStreamWriter value(boolean value) throws IOException {
+        separate();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Numbers, booleans, strings, maps and null; anything else as its toString().
+     */
+    @SuppressWarnings("unchecked")
+    public JsonStreamWriter value(Object value) throws IOException {
+        if (value == null) return value((String) null);
+        if (value instanceof Double || value instanceof Float) return value(((Number) value).doubleValue());
+        if (value instanceof Number) return value(((Number) value).longValue());
+        if (value instanceof Boolean) return value(((Boolean) value).booleanValue());
+        if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                name(entry.getKey()).value(entry.getValue());
+            }
+            return endObject();
+        }
+        return value(value.toString());
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Flushes and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private JsonStreamWriter open(char bracket) throws IOException {
+        separate();
+        out.write(bracket);
+        if (depth == MAX_DEPTH) throw new IllegalStateException("JSON nested too deeply");
+        empty[depth++] = true;
+        return this;
+    }
+
+    private JsonStreamWriter close(char bracket) throws IOException {
+        depth--;
+        out.write(bracket);
+        return this;
+    }
+
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth == 0) return;
+        if (empty[depth - 1]) empty[depth - 1] = false;
+        else out.write(',');
+    }
+
+    private void string(String s) throws IOException {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
@@ -1,240 +1,657 @@
 package web;
 
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
 import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.Sorts;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import metrics.Metrics;
 
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.mongodb.client.model.Filters.eq;
 
 /**
  * MongoDB manager for both:
- *  - Energy history records
- *  - Device inventory (shared by SOAP + REST)
+ *  - Energy history records (raw, plus minute/hour/day rollups)
+ *  - Device inventory (shared by SOAP + REST, served from DeviceRegistry)
+ *
+ * Every operation is timed in Metrics as "mongo.&lt;method&gt;".
  */
-public class MongoDBManager {
+public class MongoDBManager implements StorageBackend {
 
-    private static final String CONNECTION_STRING = "mongodb://localhost:27017";
-    private static final String DATABASE_NAME = "smart_energy_db";
+    // a server that is down fails calls (and the startup ping) after 5 s instead of the driver's 30 s
+    static final String CONNECTION_STRING = "mongodb://localhost:27017/?serverSelectionTimeoutMS=5000";
+    static final String DATABASE_NAME = "smart_energy_db";
 
     // Collections
-    private static final String ENERGY_COLLECTION = "energy_history";
+    static final String ENERGY_COLLECTION = "energy_history";
     private static final String DEVICES_COLLECTION = "devices";
 
+    // "documents": one document per sample in energy_history (default);
+    // "buckets": one document per hour in energy_buckets (see EnergyBuckets)
+    private static final boolean BUCKET_STORAGE =
+            "buckets".equalsIgnoreCase(System.getProperty("smarthome.energy.storage", "documents"));
+
     private MongoClient mongoClient;
     private MongoDatabase database;
 
     private MongoCollection<Document> energyCollection;
+    private MongoCollection<EnergyRecord> energyRecords;
     private MongoCollection<Document> devicesCollection;
 
+    private EnergyWriteBuffer energyWriteBuffer;
+    private boolean setUp;
+    private EnergyRollups energyRollups;
+    private EnergyBuckets energyBuckets;
+
+    // One registry per process, shared by every MongoDBManager instance: device
+    // reads are served from it, every write goes to MongoDB first, then to it
+    private static final DeviceRegistry deviceRegistry = new DeviceRegistry();
+
+    private static final FindOneAndUpdateOptions RETURN_UPDATED_DEVICE = new FindOneAndUpdateOptions()
+            .returnDocument(ReturnDocument.AFTER)
+            .projection(Projections.fields(
+                    Projections.include("name", "baseConsumption", "isOn", "group"), Projections.excludeId()));
+    private static final int DUPLICATE_KEY = 11000;
+    private static final ReentrantLock[] DEVICE_LOCKS = new ReentrantLock[64];
+
+    static {
+        for (int i = 0; i < DEVICE_LOCKS.length; i++) DEVICE_LOCKS[i] = new ReentrantLock();
+    }
+
+    @Override
     public void init() {
+        long start = System.nanoTime();
         try {
             mongoClient = MongoClients.create(CONNECTION_STRING);
             database = mongoClient.getDatabase(DATABASE_NAME);
 
             energyCollection = database.getCollection(ENERGY_COLLECTION);
+            energyRecords = energyCollection.withDocumentClass(EnergyRecord.class)
+                    .withCodecRegistry(EnergyRecordCodec.REGISTRY);
             devicesCollection = database.getCollection(DEVICES_COLLECTION);
 
-            // Ensure unique device names
-            devicesCollection.createIndex(
-                    Indexes.ascending("name"),
-                    new IndexOptions().unique(true)
-            );
-
-            System.out.println("Connected to MongoDB database: " + DATABASE_NAME);
+            // nothing above reaches the server: the buffer exists even when MongoDB is down at boot
+            energyRollups = new EnergyRollups(database, ENERGY_COLLECTION);
+            if (BUCKET_STORAGE) energyBuckets = new EnergyBuckets(database);
+            energyWriteBuffer = EnergyWriteBuffer.fromSystemProperties(new EnergyWriteBuffer.Writer() {
+                @Override
+                public List<EnergyRecord> write(List<EnergyRecord> batch) {
+                    ensureSetUp();
+                    return energyBuckets != null ? energyBuckets.write(batch) : insertRecords(batch);
+                }
+            }, energyRollups);
+
+            try {
+                ensureSetUp();
+                System.out.println("Connected to MongoDB database: " + DATABASE_NAME);
+            } catch (Exception e) {
+                Metrics.error("mongo.init");
+                System.err.println("MongoDB not reachable, setup retried before the next write: " + e.getMessage());
+            }
         } catch (Exception e) {
+            Metrics.error("mongo.init");
             System.err.println("Failed to connect to MongoDB: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            Metrics.time("mongo.init", start);
         }
     }
 
+    /**
+     * Pings the server and, the first time it answers, runs the setup.
+     */
+    @Override
+    public boolean isReady() {
+        if (database == null) return false;
+        try {
+            database.runCommand(new Document("ping", 1));
+            ensureSetUp();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Indexes, rollups and the device registry: the server calls, done once,
+     * before the first energy write.
+     */
+    private synchronized void ensureSetUp() {
+        if (setUp) return;
+        ensureIndexes();
+        energyRollups.init();
+        if (energyBuckets != null) energyBuckets.init();
+        deviceRegistry.load(devicesCollection);
+        setUp = true;
+    }
+
+    /**
+     * Unordered insert; returns the records to retry. A duplicate key is a
+     * record already stored (the _id is the timestamp, see EnergyRecordCodec),
+     * e.g. by an attempt that failed after the server committed it.
+     */
+    private List<EnergyRecord> insertRecords(List<EnergyRecord> batch) {
+        try {
+            energyRecords.insertMany(batch, new InsertManyOptions().ordered(false));
+            return Collections.emptyList();
+        } catch (MongoBulkWriteException e) {
+            if (e.getWriteConcernError() != null) throw e;
+            List<EnergyRecord> failed = new ArrayList<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) failed.add(batch.get(error.getIndex()));
+            }
+            return failed;
+        }
+    }
+
+    /**
+     * Indexes every query in this class relies on. createIndex is a no-op when
+     * the index already exists.
+     */
+    private void ensureIndexes() {
+        // Ensure unique device names
+        devicesCollection.createIndex(
+                Indexes.ascending("name"),
+                new IndexOptions().unique(true)
+        );
+        // Bulk power updates by group
+        devicesCollection.createIndex(Indexes.ascending("group"));
+        // Latest-record and history reads walk this index instead of sorting in memory
+        energyCollection.createIndex(
+                Indexes.descending("timestamp"),
+                new IndexOptions().name("timestamp_desc")
+        );
+    }
+
     /* -------------------- ENERGY HISTORY -------------------- */
 
-    public void saveEnergyRecord(Map<String, Object> data) {
+    /**
+     * Queues the record for a batched insert (see EnergyWriteBuffer).
+     * Blocks briefly when the buffer is full. EnergyRecordCodec stores a
+     * "date" copy of the timestamp, which the raw retention TTL index expires on.
+     */
+    @Override
+    public void saveEnergyRecord(EnergyRecord record) {
+        long start = System.nanoTime();
         try {
-            Document document = new Document(data);
-            energyCollection.insertOne(document);
-            System.out.println("[DEBUG] Record saved to MongoDB: " + data);
+            if (!energyWriteBuffer.add(record)) {
+                Metrics.error("mongo.saveEnergyRecord");
+                System.err.println("Failed to save record to MongoDB: write buffer full");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Metrics.error("mongo.saveEnergyRecord");
+            System.err.println("Interrupted while saving record to MongoDB");
         } catch (Exception e) {
+            Metrics.error("mongo.saveEnergyRecord");
             System.err.println("Failed to save record to MongoDB: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            Metrics.time("mongo.saveEnergyRecord", start);
         }
     }
 
-    public List<Map<String, Object>> getEnergyHistory() {
-        List<Map<String, Object>> history = new ArrayList<>();
+    @Override
+    public int getPendingEnergyWrites() {
+        return energyWriteBuffer != null ? energyWriteBuffer.pendingCount() : 0;
+    }
+
+    /**
+     * Decoded by EnergyRecordCodec straight from BSON.
+     */
+    @Override
+    public List<EnergyRecord> getEnergyHistory(Long from, Long to, int limit) {
+        List<EnergyRecord> history = new ArrayList<>();
+        long start = System.nanoTime();
         try {
-            for (Document doc : energyCollection.find().sort(Sorts.descending("timestamp")).limit(100)) {
-                history.add(new HashMap<>(doc));
+            int max = limit > 0 ? Math.min(limit, MAX_HISTORY_LIMIT) : DEFAULT_HISTORY_LIMIT;
+            if (energyBuckets != null) {
+                return energyBuckets.find(from, to, max);
             }
+
+            List<Bson> range = new ArrayList<>();
+            if (from != null) range.add(Filters.gte("timestamp", from));
+            if (to != null) range.add(Filters.lte("timestamp", to));
+            Bson filter = range.isEmpty() ? new Document() : Filters.and(range);
+
+            energyRecords.find(filter)
+                    .sort(Sorts.descending("timestamp"))
+                    .limit(max)
+                    .into(history);
             System.out.println("[DEBUG] Retrieved " + history.size() + " records from MongoDB.");
         } catch (Exception e) {
+            Metrics.error("mongo.getEnergyHistory");
             System.err.println("Failed to retrieve energy history from MongoDB: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            Metrics.time("mongo.getEnergyHistory", start);
+        }
+        return history;
+    }
+
+    @Override
+    public List<EnergyRecord> getEnergyHistoryAfter(long since, int limit) {
+        List<EnergyRecord> history = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            int max = limit > 0 ? Math.min(limit, MAX_HISTORY_LIMIT) : DEFAULT_HISTORY_LIMIT;
+            if (energyBuckets != null) {
+                return energyBuckets.findAfter(since, max);
+            }
+            energyRecords.find(Filters.gt("timestamp", since))
+                    .sort(Sorts.ascending("timestamp"))
+                    .limit(max)
+                    .into(history);
+        } catch (Exception e) {
+            Metrics.error("mongo.getEnergyHistoryAfter");
+            System.err.println("Failed to retrieve energy history from MongoDB: " + e.getMessage());
+        } finally {
+            Metrics.time("mongo.getEnergyHistoryAfter", start);
         }
         return history;
     }
 
-    public Map<String, Object> getLatestEnergyRecord() {
+    @Override
+    public List<Map<String, Object>> getEnergyRollups(EnergyRollups.Resolution resolution, Long from, Long to, int limit) {
+        long start = System.nanoTime();
         try {
-            Document doc = energyCollection.find().sort(Sorts.descending("timestamp")).first();
-            if (doc != null) {
-                return new HashMap<>(doc);
+            int max = limit > 0 ? Math.min(limit, MAX_HISTORY_LIMIT) : DEFAULT_HISTORY_LIMIT;
+            return energyRollups.find(resolution, from, to, max);
+        } catch (Exception e) {
+            Metrics.error("mongo.getEnergyRollups");
+            System.err.println("Failed to retrieve energy rollups from MongoDB: " + e.getMessage());
+            e.printStackTrace();
+            return new ArrayList<>();
+        } finally {
+            Metrics.time("mongo.getEnergyRollups", start);
+        }
+    }
+
+    @Override
+    public EnergyRecord getLatestEnergyRecord() {
+        long start = System.nanoTime();
+        try {
+            // newest record may still be waiting in the write buffer
+            EnergyRecord pending = energyWriteBuffer != null ? energyWriteBuffer.getLatest() : null;
+            if (pending != null) {
+                return pending;
             }
+            if (energyBuckets != null) {
+                return energyBuckets.latest();
+            }
+            return energyRecords.find()
+                    .sort(Sorts.descending("timestamp"))
+                    .first();
         } catch (Exception e) {
+            Metrics.error("mongo.getLatestEnergyRecord");
             System.err.println("Failed to retrieve latest record from MongoDB: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            Metrics.time("mongo.getLatestEnergyRecord", start);
         }
         return null;
     }
 
     /* -------------------- DEVICES -------------------- */
 
+    @Override
     public boolean deviceExistsByName(String name) {
-        try {
-            return devicesCollection.find(eq("name", name)).first() != null;
-        } catch (Exception e) {
-            System.err.println("Failed to check device existence: " + e.getMessage());
-            return false;
-        }
+        return deviceRegistry.get(name) != null;
     }
 
-    /**
-     * Insert a device. Returns true if inserted, false if duplicate.
-     */
-    public boolean insertDevice(String name, double baseConsumption, boolean isOn) {
+    @Override
+    public Device getDevice(String name) {
+        return deviceRegistry.get(name);
+    }
+
+    @Override
+    public Device findDeviceIgnoreCase(String name) {
+        return deviceRegistry.findIgnoreCase(name);
+    }
+
+    @Override
+    public boolean insertDevice(String name, double baseConsumption, boolean isOn, String group) {
+        long start = System.nanoTime();
         try {
             Document doc = new Document("name", name)
                     .append("baseConsumption", baseConsumption)
                     .append("isOn", isOn)
                     .append("createdAt", System.currentTimeMillis());
+            if (group != null) doc.append("group", group);
             devicesCollection.insertOne(doc);
+            deviceRegistry.put(new Device(name, baseConsumption, isOn, group));
             return true;
         } catch (Exception e) {
             // Duplicate key or other insert issues
+            Metrics.error("mongo.insertDevice");
             return false;
+        } finally {
+            Metrics.time("mongo.insertDevice", start);
         }
     }
 
     /**
      * Upsert (insert or update) a device by name.
      */
+    @Override
     public void upsertDevice(String name, double baseConsumption, boolean isOn) {
         UpdateOptions options = new UpdateOptions().upsert(true); // standard MongoDB upsert option [web:217]
-        devicesCollection.updateOne(
-                eq("name", name),
-                Updates.combine(
-                        Updates.set("baseConsumption", baseConsumption),
-                        Updates.set("isOn", isOn),
-                        Updates.set("updatedAt", System.currentTimeMillis()),
-                        Updates.setOnInsert("createdAt", System.currentTimeMillis())
-                ),
-                options
-        );
+        long start = System.nanoTime();
+        try {
+            devicesCollection.updateOne(
+                    eq("name", name),
+                    Updates.combine(
+                            Updates.set("baseConsumption", baseConsumption),
+                            Updates.set("isOn", isOn),
+                            Updates.set("updatedAt", System.currentTimeMillis()),
+                            Updates.setOnInsert("createdAt", System.currentTimeMillis())
+                    ),
+                    options
+            );
+        } catch (RuntimeException e) {
+            Metrics.error("mongo.upsertDevice");
+            throw e;
+        } finally {
+            Metrics.time("mongo.upsertDevice", start);
+        }
+        Device existing = deviceRegistry.get(name);
+        deviceRegistry.put(new Device(name, baseConsumption, isOn, existing != null ? existing.getGroup() : null));
     }
 
+    @Override
     public boolean removeDevice(String name) {
+        long start = System.nanoTime();
         try {
-            return devicesCollection.deleteOne(eq("name", name)).getDeletedCount() > 0;
+            boolean removed = devicesCollection.deleteOne(eq("name", name)).getDeletedCount() > 0;
+            if (removed) deviceRegistry.remove(name);
+            return removed;
         } catch (Exception e) {
+            Metrics.error("mongo.removeDevice");
             System.err.println("Failed to remove device: " + e.getMessage());
             return false;
+        } finally {
+            Metrics.time("mongo.removeDevice", start);
         }
     }
 
-    public boolean setDevicePower(String name, boolean isOn) {
+    /**
+     * Returns the device after the update, or null if there is no such device.
+     */
+    @Override
+    public Device setDevicePower(String name, boolean isOn) {
+        return updateDevice("mongo.setDevicePower", name, Updates.set("isOn", isOn), null);
+    }
+
+    /**
+     * Flips isOn inside MongoDB with an update pipeline, so concurrent toggles
+     * from REST and SOAP never read a stale state. Returns the device after
+     * the update, or null if there is no such device.
+     */
+    @Override
+    public Device toggleDevicePower(String name) {
+        List<Bson> pipeline = Collections.<Bson>singletonList(
+                new Document("$set", new Document("isOn", new Document("$not", "$isOn"))));
+        return updateDevice("mongo.toggleDevicePower", name, null, pipeline);
+    }
+
+    @Override
+    public Device updateDeviceConsumption(String name, double newConsumption) {
+        return updateDevice("mongo.updateDeviceConsumption", name, Updates.set("baseConsumption", newConsumption), null);
+    }
+
+    /**
+     * Moves the device to a group (null removes it from its group).
+     */
+    @Override
+    public Device setDeviceGroup(String name, String group) {
+        Bson update = group != null ? Updates.set("group", group) : Updates.unset("group");
+        return updateDevice("mongo.setDeviceGroup", name, update, null);
+    }
+
+    /**
+     * One findOneAndUpdate returning the updated document (update or pipeline).
+     * The registry is written under a per-name lock, so concurrent updates of
+     * one device land in the registry in the order MongoDB applied them.
+     */
+    private Device updateDevice(String operation, String name, Bson update, List<Bson> pipeline) {
+        if (name == null) return null;
+        long start = System.nanoTime();
         try {
-            return devicesCollection.updateOne(eq("name", name), Updates.set("isOn", isOn)).getMatchedCount() > 0;
+            ReentrantLock lock = deviceLock(name);
+            lock.lock();
+            try {
+                Document doc = pipeline != null
+                        ? devicesCollection.findOneAndUpdate(eq("name", name), pipeline, RETURN_UPDATED_DEVICE)
+                        : devicesCollection.findOneAndUpdate(eq("name", name), update, RETURN_UPDATED_DEVICE);
+                if (doc == null) return null;
+                Device device = Device.fromDocument(doc);
+                deviceRegistry.put(device);
+                return device;
+            } finally {
+                lock.unlock();
+            }
         } catch (Exception e) {
-            System.err.println("Failed to set device power: " + e.getMessage());
-            return false;
+            Metrics.error(operation);
+            System.err.println("Failed to update device " + name + ": " + e.getMessage());
+            return null;
+        } finally {
+            Metrics.time(operation, start);
         }
     }
 
-    public boolean toggleDevicePower(String name) {
-        Document doc = devicesCollection.find(eq("name", name)).first();
-        if (doc == null) return false;
-        boolean current = doc.getBoolean("isOn", false);
-        return setDevicePower(name, !current);
+    private static int stripe(String name) {
+        return (name.hashCode() & 0x7fffffff) % DEVICE_LOCKS.length;
     }
 
-    public boolean updateDeviceConsumption(String name, double newConsumption) {
-        try {
-            return devicesCollection.updateOne(eq("name", name), Updates.set("baseConsumption", newConsumption)).getMatchedCount() > 0;
-        } catch (Exception e) {
-            System.err.println("Failed to update device consumption: " + e.getMessage());
-            return false;
+    private static ReentrantLock deviceLock(String name) {
+        return DEVICE_LOCKS[stripe(name)];
+    }
+
+    /**
+     * Locks the stripes of all the names, in stripe order so that two bulk
+     * updates never wait on each other crosswise. Release with unlockDevices.
+     */
+    private static List<ReentrantLock> lockDevices(Collection<String> names) {
+        TreeSet<Integer> stripes = new TreeSet<Integer>();
+        for (String name : names) stripes.add(stripe(name));
+        List<ReentrantLock> locked = new ArrayList<ReentrantLock>(stripes.size());
+        for (int stripe : stripes) {
+            DEVICE_LOCKS[stripe].lock();
+            locked.add(DEVICE_LOCKS[stripe]);
         }
+        return locked;
+    }
+
+    private static void unlockDevices(List<ReentrantLock> locked) {
+        for (int i = locked.size() - 1; i >= 0; i--) locked.get(i).unlock();
+    }
+
+    @Override
+    public long getDevicesVersion() {
+        return deviceRegistry.version();
     }
 
-    public List<Map<String, Object>> getAllDevices() {
-        List<Map<String, Object>> list = new ArrayList<>();
+    @Override
+    public List<Device> getAllDevices() {
+        long start = System.nanoTime();
         try {
-            for (Document doc : devicesCollection.find().sort(Sorts.ascending("name"))) {
-                list.add(new HashMap<>(doc));
-            }
-        } catch (Exception e) {
-            System.err.println("Failed to list devices: " + e.getMessage());
+            return deviceRegistry.all();
+        } finally {
+            Metrics.time("mongo.getAllDevices", start);
         }
-        return list;
     }
 
-    public List<Map<String, Object>> getDevicesByStatus(boolean isOn) {
-        List<Map<String, Object>> list = new ArrayList<>();
+    @Override
+    public List<Device> getDevicesByGroup(String group) {
+        return deviceRegistry.byGroup(group);
+    }
+
+    @Override
+    public List<Device> getDevicesByStatus(boolean isOn) {
+        long start = System.nanoTime();
         try {
-            for (Document doc : devicesCollection.find(eq("isOn", isOn)).sort(Sorts.ascending("name"))) {
-                list.add(new HashMap<>(doc));
-            }
-        } catch (Exception e) {
-            System.err.println("Failed to list devices by status: " + e.getMessage());
+            return deviceRegistry.byStatus(isOn);
+        } finally {
+            Metrics.time("mongo.getDevicesByStatus", start);
         }
-        return list;
     }
 
+    @Override
     public double getTotalConsumptionForOnDevices() {
-        double total = 0.0;
+        long start = System.nanoTime();
+        try {
+            return deviceRegistry.totalConsumptionOfOnDevices();
+        } finally {
+            Metrics.time("mongo.getTotalConsumptionForOnDevices", start);
+        }
+    }
+
+    /* -------------------- BULK POWER UPDATES -------------------- */
+
+    /**
+     * Sets isOn for all named devices with one updateMany.
+     * Returns the devices that exist, in their new state.
+     */
+    @Override
+    public List<Device> setDevicesPower(Collection<String> names, boolean isOn) {
+        List<Device> matched = new ArrayList<Device>();
+        for (String name : names) {
+            Device device = deviceRegistry.get(name);
+            if (device != null) matched.add(device);
+        }
+        return applyPower("mongo.setDevicesPower", matched, isOn);
+    }
+
+    @Override
+    public List<Device> setGroupPower(String group, boolean isOn) {
+        return applyPower("mongo.setGroupPower", deviceRegistry.byGroup(group), isOn);
+    }
+
+    @Override
+    public List<Device> setAllDevicesPower(boolean isOn) {
+        return applyPower("mongo.setAllDevicesPower", deviceRegistry.all(), isOn);
+    }
+
+    /**
+     * Sets isOn for every device matching all the non-null criteria, selected
+     * from the registry like the other reads, then written with one updateMany.
+     */
+    @Override
+    public List<Device> setDevicesPowerWhere(Boolean currentlyOn, String group, Double minConsumption,
+                                             Double maxConsumption, boolean isOn) {
+        List<Device> matched = new ArrayList<Device>();
+        for (Device device : deviceRegistry.all()) {
+            if (currentlyOn != null && device.isOn() != currentlyOn) continue;
+            if (group != null && !group.equals(device.getGroup())) continue;
+            if (minConsumption != null && device.getBaseConsumption() < minConsumption) continue;
+            if (maxConsumption != null && device.getBaseConsumption() > maxConsumption) continue;
+            matched.add(device);
+        }
+        return applyPower("mongo.setDevicesPowerWhere", matched, isOn);
+    }
+
+    /**
+     * Different power states per device in one unordered bulkWrite.
+     * Returns the devices that exist, in their new state.
+     */
+    @Override
+    public List<Device> setDevicesPower(Map<String, Boolean> states) {
+        List<String> names = new ArrayList<String>();
+        for (Map.Entry<String, Boolean> entry : states.entrySet()) {
+            if (entry.getValue() != null) names.add(entry.getKey());
+        }
+        if (names.isEmpty()) return new ArrayList<Device>();
+        long start = System.nanoTime();
+        List<ReentrantLock> locks = lockDevices(names);
         try {
-            for (Document doc : devicesCollection.find(eq("isOn", true))) {
-                total += doc.getDouble("baseConsumption");
+            List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>();
+            List<Device> changed = new ArrayList<Device>();
+            for (String name : names) {
+                // read under the locks: no other update of these devices can land in between
+                Device device = deviceRegistry.get(name);
+                if (device == null) continue;
+                writes.add(new UpdateOneModel<Document>(eq("name", name), Updates.set("isOn", states.get(name))));
+                changed.add(device.withOn(states.get(name)));
             }
+            if (writes.isEmpty()) return changed;
+            devicesCollection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+            for (Device device : changed) deviceRegistry.put(device);
+            return changed;
         } catch (Exception e) {
-            System.err.println("Failed to compute total consumption: " + e.getMessage());
+            Metrics.error("mongo.setDevicesPowerBulk");
+            System.err.println("Failed to set devices power: " + e.getMessage());
+            return new ArrayList<Device>();
+        } finally {
+            unlockDevices(locks);
+            Metrics.time("mongo.setDevicesPowerBulk", start);
         }
-        return total;
     }
 
-    public void seedDefaultDevicesIfEmpty() {
+    /**
+     * One updateMany on the names of the matched devices, so MongoDB and the
+     * registry change the same set. The devices are re-read from the
+     * registry under their locks, so a concurrent consumption, group or
+     * rename update is not overwritten by the copy matched earlier.
+     */
+    private List<Device> applyPower(String operation, List<Device> matched, boolean isOn) {
+        if (matched.isEmpty()) return new ArrayList<Device>();
+        List<String> names = new ArrayList<String>(matched.size());
+        for (Device device : matched) names.add(device.getName());
+        long start = System.nanoTime();
+        List<ReentrantLock> locks = lockDevices(names);
         try {
-            long count = devicesCollection.countDocuments();
-            if (count > 0) return;
-
-            insertDevice("Heating System", 25.0, true);
-            insertDevice("Air Conditioner", 30.0, false);
-            insertDevice("Water Heater", 15.0, true);
-            insertDevice("Lighting Grid", 10.0, true);
-            insertDevice("Entertainment System", 5.0, false);
-
-            System.out.println("Seeded default devices into MongoDB.");
+            devicesCollection.updateMany(Filters.in("name", names), Updates.set("isOn", isOn));
+            List<Device> changed = new ArrayList<Device>(names.size());
+            for (String name : names) {
+                Device current = deviceRegistry.get(name);
+                if (current == null) continue;
+                Device updated = current.withOn(isOn);
+                deviceRegistry.put(updated);
+                changed.add(updated);
+            }
+            return changed;
         } catch (Exception e) {
-            System.err.println("Failed to seed devices: " + e.getMessage());
+            Metrics.error(operation);
+            System.err.println("Failed to set devices power: " + e.getMessage());
+            return new ArrayList<Device>();
+        } finally {
+            unlockDevices(locks);
+            Metrics.time(operation, start);
         }
     }
 
+    @Override
     public void close() {
+        if (energyWriteBuffer != null) {
+            energyWriteBuffer.close();
+        }
         try {
             if (mongoClient != null) {
                 mongoClient.close();
@@ -0,0 +1,656 @@
+package web;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import metrics.Metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * HTTP/1.1 server on a single selector thread (-Dsmarthome.http.engine=nio),
+ * running the same HttpHandlers as the JDK HttpServer, found through a Router.
+ *
+ * The selector thread accepts, reads and parses requests and writes
+ * responses; only handlers run on the executor. A connection holds no
+ * thread while it is idle between keep-alive requests or while an event
+ * stream (/api/stream) stays open, so thousands of them cost a socket and a
+ * few buffers each.
+ *
+ * Responses are queued per connection and written when the socket accepts
+ * them. A handler writing faster than the client reads blocks once
+ * MAX_PENDING_OUTPUT bytes are waiting, and gets an IOException if the
+ * client does not read for WRITE_TIMEOUT_MS. Request bodies must have a
+ * Content-Length (no chunked uploads). Idle connections are closed after
+ * -Dsmarthome.http.idleTimeoutMs (300000).
+ *
+ * Routes are not HttpContexts (getHttpContext() is null), so a Filter is
+ * applied by wrapping the handler given to the Router; setStreams works as
+ * in the JDK server, letting it wrap the request and response streams.
+ */
+public class NioHttpServer {
+
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int MAX_BODY_BYTES = 1024 * 1024;
+    private static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+    private static final long WRITE_TIMEOUT_MS = 30000L;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final InetSocketAddress address;
+    private final Router router;
+    private final Executor executor;
+    private final long idleTimeoutMs = Long.getLong("smarthome.http.idleTimeoutMs", 300000L);
+
+    // tasks handed to the selector thread by handler threads
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // selector thread only
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private volatile int connectionCount;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread loop;
+    private volatile boolean running;
+
+    public NioHttpServer(InetSocketAddress address, Router router, Executor executor) {
+        this.address = address;
+        this.router = router;
+        this.executor = executor;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        loop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                eventLoop();
+            }
+        }, "http-nio-loop");
+        loop.start();
+    }
+
+    /**
+     * Stops accepting, closes every connection and waits up to
+     * delaySeconds for the selector thread to finish.
+     */
+    public void stop(int delaySeconds) {
+        running = false;
+        if (selector != null) selector.wakeup();
+        try {
+            if (loop != null) loop.join(delaySeconds * 1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Open connections, idle ones included (smarthome_http_connections).
+     */
+    public void registerGauges() {
+        Metrics.gauge("http_connections", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return connectionCount;
+            }
+        });
+    }
+
+    /* ------------------- Selector thread ------------------- */
+
+    private void eventLoop() {
+        long nextSweep = System.currentTimeMillis() + 1000;
+        try {
+            while (running) {
+                selector.select(1000);
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.write();
+                    } catch (IOException | RuntimeException e) {
+                        connection.close();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    nextSweep = now + 1000;
+                    closeIdle(now);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("HTTP event loop failed: " + e.getMessage());
+        } finally {
+            for (Connection connection : new HashSet<Connection>(connections)) connection.close();
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            connectionCount = connections.size();
+        }
+    }
+
+    private void closeIdle(long now) {
+        for (Connection connection : new HashSet<Connection>(connections)) {
+            if (connection.current == null && now - connection.lastActive > idleTimeoutMs) connection.close();
+        }
+    }
+
+    private void onLoop(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /* ------------------- Connection ------------------- */
+
+    private final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        long lastActive = System.currentTimeMillis();
+        // exchange being handled; requests behind it wait in "in"
+        Exchange current;
+
+        // shared with handler threads, guarded by this
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        private int pendingBytes;
+        private boolean closeWhenWritten;
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (!in.hasRemaining()) {
+                // a pipelined request waits behind the current one: resume when it is done
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            if (current == null) parse();
+        }
+
+        /**
+         * Starts the next complete request in the input buffer, if any.
+         */
+        void parse() throws IOException {
+            byte[] data = in.array();
+            int length = in.position();
+            int headerEnd = indexOf(data, length);
+            if (headerEnd < 0) {
+                if (length >= MAX_HEADER_BYTES) reject(431, "Request Header Fields Too Large");
+                else if (!in.hasRemaining()) grow(MAX_HEADER_BYTES);
+                return;
+            }
+            String[] lines = new String(data, 0, headerEnd, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                reject(400, "Bad Request");
+                return;
+            }
+            Headers headers = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            if (headers.containsKey("Transfer-Encoding")) {
+                reject(411, "Length Required");
+                return;
+            }
+            int bodyLength;
+            try {
+                String contentLength = headers.getFirst("Content-Length");
+                bodyLength = contentLength == null ? 0 : Integer.parseInt(contentLength);
+            } catch (NumberFormatException e) {
+                reject(400, "Bad Request");
+                return;
+            }
+            if (bodyLength < 0 || bodyLength > MAX_BODY_BYTES) {
+                reject(413, "Payload Too Large");
+                return;
+            }
+            int total = headerEnd + 4 + bodyLength;
+            if (length < total) {
+                if (in.capacity() < total) grow(total);
+                return;
+            }
+            URI uri;
+            try {
+                uri = new URI(requestLine[1]);
+            } catch (URISyntaxException e) {
+                reject(400, "Bad Request");
+                return;
+            }
+            byte[] body = new byte[bodyLength];
+            System.arraycopy(data, headerEnd + 4, body, 0, bodyLength);
+            // keep what follows (a pipelined request) at the start of the buffer
+            in.flip();
+            in.position(total);
+            in.compact();
+
+            String protocol = requestLine[2];
+            String connectionHeader = headers.getFirst("Connection");
+            boolean keepAlive = "HTTP/1.1".equals(protocol)
+                    ? !"close".equalsIgnoreCase(connectionHeader)
+                    : "keep-alive".equalsIgnoreCase(connectionHeader);
+            final Exchange exchange = new Exchange(this, requestLine[0], uri, protocol, headers, body, keepAlive);
+            current = exchange;
+            final HttpHandler handler = router.find(uri.getPath() != null ? uri.getPath() : "/");
+            if (handler == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handler.handle(exchange);
+                    } catch (Exception e) {
+                        // same as the JDK server: the exchange is dropped
+                        exchange.abort();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Called on the selector thread once the current response is complete.
+         */
+        void finished(Exchange exchange) throws IOException {
+            if (current != exchange || closed) return;
+            current = null;
+            lastActive = System.currentTimeMillis();
+            if (!exchange.keepAlive) {
+                closeAfterWrite();
+                return;
+            }
+            if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            parse();
+        }
+
+        void write() throws IOException {
+            synchronized (this) {
+                while (!out.isEmpty()) {
+                    ByteBuffer head = out.peek();
+                    int before = head.remaining();
+                    channel.write(head);
+                    pendingBytes -= before - head.remaining();
+                    if (head.hasRemaining()) break;
+                    out.poll();
+                }
+                notifyAll();
+                if (!out.isEmpty()) return;
+                if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (!closeWhenWritten) return;
+            }
+            close();
+        }
+
+        /**
+         * Queues bytes for the client; any thread. Blocks while too much
+         * output is already waiting.
+         */
+        void send(byte[] bytes, int offset, int length) throws IOException {
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MS;
+                // the selector thread (rejections, shed requests) never waits on itself
+                while (pendingBytes > MAX_PENDING_OUTPUT && !closed && Thread.currentThread() != loop) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) throw new IOException("client is not reading");
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted");
+                    }
+                }
+                if (closed) throw new IOException("connection closed");
+                byte[] copy = new byte[length];
+                System.arraycopy(bytes, offset, copy, 0, length);
+                out.add(ByteBuffer.wrap(copy));
+                pendingBytes += length;
+            }
+            onLoop(new Runnable() {
+                @Override
+                public void run() {
+                    if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+
+        void closeAfterWrite() throws IOException {
+            synchronized (this) {
+                closeWhenWritten = true;
+                if (!out.isEmpty()) return;
+            }
+            close();
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                out.clear();
+                notifyAll();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            connections.remove(this);
+            connectionCount = connections.size();
+        }
+
+        private void reject(int code, String reason) throws IOException {
+            byte[] response = ("HTTP/1.1 " + code + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            in.clear();
+            current = null;
+            send(response, 0, response.length);
+            closeAfterWrite();
+        }
+
+        private void grow(int capacity) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(capacity, in.capacity() * 2));
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+            if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Position of the blank line ending the headers, or -1.
+     */
+    private static int indexOf(byte[] data, int length) {
+        for (int i = 0; i + 3 < length; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') return i;
+        }
+        return -1;
+    }
+
+    /* ------------------- Exchange ------------------- */
+
+    private final class Exchange extends HttpExchange {
+        private final Connection connection;
+        private final String method;
+        private final URI uri;
+        private final String protocol;
+        private final Headers requestHeaders;
+        private final Headers responseHeaders = new Headers();
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+        private final ResponseStream responseBody = new ResponseStream();
+        // what handlers see; a Filter may wrap them with setStreams
+        private volatile InputStream requestStream;
+        private volatile OutputStream responseStream = responseBody;
+        private boolean keepAlive;
+        private volatile int responseCode = -1;
+        private boolean done;
+
+        Exchange(Connection connection, String method, URI uri, String protocol, Headers requestHeaders,
+                 byte[] body, boolean keepAlive) {
+            this.connection = connection;
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.requestHeaders = requestHeaders;
+            this.requestStream = new ByteArrayInputStream(body);
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public Headers getRequestHeaders() { return requestHeaders; }
+
+        @Override
+        public Headers getResponseHeaders() { return responseHeaders; }
+
+        @Override
+        public URI getRequestURI() { return uri; }
+
+        @Override
+        public String getRequestMethod() { return method; }
+
+        @Override
+        public HttpContext getHttpContext() { return null; }
+
+        @Override
+        public InputStream getRequestBody() { return requestStream; }
+
+        @Override
+        public OutputStream getResponseBody() { return responseStream; }
+
+        @Override
+        public int getResponseCode() { return responseCode; }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return (InetSocketAddress) connection.channel.socket().getRemoteSocketAddress();
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return (InetSocketAddress) connection.channel.socket().getLocalSocketAddress();
+        }
+
+        @Override
+        public String getProtocol() { return protocol; }
+
+        @Override
+        public Object getAttribute(String name) { return attributes.get(name); }
+
+        @Override
+        public void setAttribute(String name, Object value) { attributes.put(name, value); }
+
+        /**
+         * Replaces the streams returned by getRequestBody/getResponseBody
+         * (null keeps the current one), as a Filter does to wrap them.
+         */
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            if (i != null) requestStream = i;
+            if (o != null) responseStream = o;
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() { return null; }
+
+        /**
+         * Same contract as the JDK server: length 0 streams a chunked body,
+         * -1 sends none and completes the exchange.
+         */
+        @Override
+        public synchronized void sendResponseHeaders(int code, long length) throws IOException {
+            if (responseCode >= 0) throw new IOException("headers already sent");
+            responseCode = code;
+            boolean noBody = length < 0 || code == 204 || code == 304 || "HEAD".equals(method);
+            if (!noBody && length == 0) {
+                responseBody.chunked = true;
+                responseHeaders.set("Transfer-Encoding", "chunked");
+            } else if (code != 204 && code != 304) {
+                responseHeaders.set("Content-Length", Long.toString(noBody ? 0 : length));
+            }
+            if (!keepAlive) responseHeaders.set("Connection", "close");
+
+            StringBuilder head = new StringBuilder(256);
+            head.append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n");
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    head.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            head.append("\r\n");
+            byte[] bytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+            connection.send(bytes, 0, bytes.length);
+            if (noBody) complete();
+        }
+
+        @Override
+        public void close() {
+            if (responseCode < 0) {
+                abort();
+                return;
+            }
+            try {
+                // closing a wrapper installed by setStreams flushes it first
+                if (responseStream != responseBody) responseStream.close();
+                responseBody.close();
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        void abort() {
+            onLoop(new Runnable() {
+                @Override
+                public void run() {
+                    connection.close();
+                }
+            });
+        }
+
+        synchronized void complete() {
+            if (done) return;
+            done = true;
+            onLoop(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connection.finished(Exchange.this);
+                    } catch (IOException | RuntimeException e) {
+                        connection.close();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Buffers handler output and queues it in chunks (or as is with a
+         * Content-Length) on flush, when full, and on close.
+         */
+        private final class ResponseStream extends OutputStream {
+            private final byte[] buffer = new byte[8192];
+            private int count;
+            boolean chunked;
+            private boolean closed;
+
+            @Override
+            public synchronized void write(int b) throws IOException {
+                if (count == buffer.length) flushBuffer();
+                buffer[count++] = (byte) b;
+            }
+
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+                if (closed) throw new IOException("stream closed");
+                while (length > 0) {
+                    if (count == buffer.length) flushBuffer();
+                    int n = Math.min(length, buffer.length - count);
+                    System.arraycopy(bytes, offset, buffer, count, n);
+                    count += n;
+                    offset += n;
+                    length -= n;
+                }
+            }
+
+            @Override
+            public synchronized void flush() throws IOException {
+                flushBuffer();
+            }
+
+            @Override
+            public synchronized void close() throws IOException {
+                if (closed) return;
+                flushBuffer();
+                closed = true;
+                if (chunked) connection.send(LAST_CHUNK, 0, LAST_CHUNK.length);
+                complete();
+            }
+
+            private void flushBuffer() throws IOException {
+                if (count == 0) return;
+                if (responseCode < 0) throw new IOException("response headers not sent");
+                if (chunked) {
+                    byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                    connection.send(size, 0, size.length);
+                    connection.send(buffer, 0, count);
+                    connection.send(CRLF, 0, CRLF.length);
+                } else {
+                    connection.send(buffer, 0, count);
+                }
+                count = 0;
+            }
+        }
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return code < 400 ? "OK" : "Error";
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serialized (and gzipped) bodies of read endpoints, keyed by request
+ * (path and query) and stamped with the version of the data they were
+ * built from: an entry is rebuilt only once that version moved on.
+ *
+ * The ETag of a response is derived from the key and the version alone, so
+ * a matching If-None-Match is answered before any data is read. Versions are
+ * in-process counters that restart at 0, so ETags also carry the start time
+ * of the process: one issued before a restart never matches.
+ */
+public class ResponseCache {
+
+    /**
+     * Writes a response body; called on a cache miss.
+     */
+    public interface Body {
+        void write(OutputStream out) throws IOException;
+    }
+
+    public static final class Entry {
+        final long version;
+        final String etag;
+        final String contentType;
+        final byte[] plain;
+        // null when the body is too small to be worth compressing
+        final byte[] gzipped;
+
+        Entry(long version, String etag, String contentType, byte[] plain) throws IOException {
+            this.version = version;
+            this.etag = etag;
+            this.contentType = contentType;
+            this.plain = plain;
+            this.gzipped = plain.length >= MIN_GZIP_BYTES ? gzip(plain) : null;
+        }
+    }
+
+    static final int MIN_GZIP_BYTES = 512;
+    private static final String EPOCH = Long.toHexString(System.currentTimeMillis());
+
+    private final Map<String, Entry> entries;
+
+    public ResponseCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ResponseCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static String etag(String key, long version) {
+        return "W/\"" + EPOCH + "-" + Long.toHexString(version) + "-" + Integer.toHexString(key.hashCode()) + "\"";
+    }
+
+    /**
+     * The entry for key at this version, writing the body if the cached one
+     * is missing or older. Concurrent misses may build the same body twice;
+     * the last one built is kept.
+     */
+    public Entry get(String key, long version, String contentType, Body body) throws IOException {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.version == version) return entry;
+        }
+        Entry entry = build(etag(key, version), version, contentType, body);
+        synchronized (entries) {
+            Entry current = entries.get(key);
+            if (current == null || current.version <= version) entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    public static Entry build(String etag, long version, String contentType, Body body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        body.write(out);
+        return new Entry(version, etag, contentType, out.toByteArray());
+    }
+
+    static byte[] gzip(byte[] plain) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(plain.length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        try {
+            gzip.write(plain);
+        } finally {
+            gzip.close();
+        }
+        return bytes.toByteArray();
+    }
+}
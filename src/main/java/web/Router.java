@@ -0,0 +1,44 @@
+package web;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Handlers by path, shared by both HTTP engines (see WebServer): mounted as
+ * contexts of the JDK HttpServer, or looked up per request by NioHttpServer
+ * with the same rule, the longest path that is a prefix of the request path.
+ */
+public class Router {
+
+    private final Map<String, HttpHandler> routes = new LinkedHashMap<String, HttpHandler>();
+
+    public Router add(String path, HttpHandler handler) {
+        routes.put(path, handler);
+        return this;
+    }
+
+    /**
+     * Handler for a request path, or null when no route matches.
+     */
+    public HttpHandler find(String path) {
+        HttpHandler found = null;
+        int longest = -1;
+        for (Map.Entry<String, HttpHandler> route : routes.entrySet()) {
+            String prefix = route.getKey();
+            if (prefix.length() > longest && path.startsWith(prefix)) {
+                found = route.getValue();
+                longest = prefix.length();
+            }
+        }
+        return found;
+    }
+
+    public void mountOn(HttpServer server) {
+        for (Map.Entry<String, HttpHandler> route : routes.entrySet()) {
+            server.createContext(route.getKey(), route.getValue());
+        }
+    }
+}
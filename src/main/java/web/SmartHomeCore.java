@@ -0,0 +1,282 @@
+package web;
+
+import corba.SmartHome.Temps;
+import corba.SmartHome.TempsHelper;
+import ml.PredictionTable;
+import org.omg.CORBA.ORB;
+import org.omg.CosNaming.NamingContextExt;
+import org.omg.CosNaming.NamingContextExtHelper;
+
+import rmi.AppareilClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process service core shared by the REST server and the SOAP services.
+ *
+ * Holds the single storage backend (MongoDB with its device registry and
+ * energy write buffer, or the embedded store, see StorageBackend), the
+ * single CORBA ORB used to reach TempsService, the ring log of recent
+ * samples, the prediction table, RMI device control and the consumption
+ * threshold. Every caller sees the same caches and the same threshold.
+ */
+public class SmartHomeCore {
+
+    public static final int CORBA_PORT = 1050;
+    public static final int RMI_PORT = 1100;
+    public static final double DEFAULT_THRESHOLD = 70.0;
+
+    private static final String RMI_URL = "rmi://localhost:" + RMI_PORT + "/AppareilService";
+
+    private static SmartHomeCore shared;
+
+    private final StorageBackend storage = StorageBackend.fromSystemProperties();
+    private final EnergyRingLog recentSamples = EnergyRingLog.fromSystemProperties();
+    private final AppareilClient deviceControl = new AppareilClient(RMI_URL);
+    private ORB orb;
+    private volatile Temps tempsService;
+    private boolean timeServiceFailureLogged;
+    private volatile double threshold = DEFAULT_THRESHOLD;
+    private final AtomicLong energyVersion = new AtomicLong();
+
+    private SmartHomeCore() {
+    }
+
+    /**
+     * The process-wide core, connected to its storage on first use.
+     */
+    public static synchronized SmartHomeCore getShared() {
+        if (shared == null) {
+            shared = new SmartHomeCore();
+            shared.start();
+        }
+        return shared;
+    }
+
+    public static synchronized void shutdownShared() {
+        if (shared != null) {
+            shared.stop();
+            shared = null;
+        }
+    }
+
+    private void start() {
+        recentSamples.open();
+        storage.init();
+        storage.seedDefaultDevicesIfEmpty();
+        PredictionTable.getShared();
+    }
+
+    private void stop() {
+        PredictionTable.shutdownShared();
+        storage.close();
+        recentSamples.close();
+        synchronized (this) {
+            if (orb != null) {
+                orb.destroy();
+                orb = null;
+            }
+            tempsService = null;
+        }
+    }
+
+    /* ------------------- Storage / prediction ------------------- */
+
+    public StorageBackend getStorage() {
+        return storage;
+    }
+
+    /**
+     * Appends a collector sample to the ring log, then hands it to storage.
+     */
+    public void recordEnergy(EnergyRecord record) {
+        recentSamples.append(record);
+        storage.saveEnergyRecord(record);
+        energyVersion.incrementAndGet();
+    }
+
+    /**
+     * Stores a record timestamped by a client (SOAP), possibly older than the
+     * newest sample: straight to storage, the ring log only notes it is
+     * missing. Rejects timestamps ahead of the clock.
+     */
+    public void importEnergyRecord(EnergyRecord record) {
+        if (record.getTimestamp() > System.currentTimeMillis() + EnergyRingLog.MAX_CLOCK_SKEW_MS) {
+            throw new IllegalArgumentException("timestamp in the future: " + record.getTimestamp());
+        }
+        recentSamples.markMissing(record.getTimestamp());
+        storage.saveEnergyRecord(record);
+        energyVersion.incrementAndGet();
+    }
+
+    /**
+     * Incremented after every recorded sample and threshold change, for
+     * caches of energy responses.
+     */
+    public long getEnergyVersion() {
+        return energyVersion.get();
+    }
+
+    /**
+     * Newest record from the ring log, from storage if the ring is empty.
+     */
+    public EnergyRecord getLatestEnergyRecord() {
+        EnergyRecord latest = recentSamples.latest();
+        return latest != null ? latest : storage.getLatestEnergyRecord();
+    }
+
+    /**
+     * Raw records; windows the ring log fully covers are read from it, older
+     * ranges from storage.
+     */
+    public List<EnergyRecord> getEnergyHistory(Long from, Long to, int limit) {
+        int max = limit > 0 ? Math.min(limit, StorageBackend.MAX_HISTORY_LIMIT) : StorageBackend.DEFAULT_HISTORY_LIMIT;
+        List<EnergyRecord> recent = recentSamples.read(from, to, max);
+        return recent != null ? recent : storage.getEnergyHistory(from, to, max);
+    }
+
+    /**
+     * Raw records newer than since, oldest first, at most limit; from the
+     * ring log when it reaches back to since.
+     */
+    public List<EnergyRecord> getEnergyHistoryAfter(long since, int limit) {
+        int max = limit > 0 ? Math.min(limit, StorageBackend.MAX_HISTORY_LIMIT) : StorageBackend.DEFAULT_HISTORY_LIMIT;
+        List<EnergyRecord> recent = recentSamples.readAfter(since, max);
+        return recent != null ? recent : storage.getEnergyHistoryAfter(since, max);
+    }
+
+    /**
+     * Minute/hour/day aggregates, always from storage.
+     */
+    public List<Map<String, Object>> getEnergyRollups(EnergyRollups.Resolution resolution, Long from, Long to, int limit) {
+        return storage.getEnergyRollups(resolution, from, to, limit);
+    }
+
+    public double predict(int heure, int jour, int weekend) {
+        return PredictionTable.getShared().predict(heure, jour, weekend);
+    }
+
+    /* ------------------- Threshold ------------------- */
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(double newThreshold) {
+        threshold = newThreshold;
+        energyVersion.incrementAndGet();
+        EventStream.getShared().publishThreshold(newThreshold);
+    }
+
+    /**
+     * "ELEVEE" above the threshold, "NORMAL" otherwise.
+     */
+    public String statusFor(double consumption) {
+        return consumption > threshold ? "ELEVEE" : "NORMAL";
+    }
+
+    /* ------------------- CORBA time source ------------------- */
+
+    /**
+     * TempsService stub, resolved through the one ORB of this process.
+     * Returns null while the name service or the server is not reachable.
+     */
+    public Temps getTimeService() {
+        Temps current = tempsService;
+        if (current != null) return current;
+        return connectTimeService();
+    }
+
+    public boolean isTimeServiceConnected() {
+        return tempsService != null;
+    }
+
+    private synchronized Temps connectTimeService() {
+        if (tempsService != null) return tempsService;
+        try {
+            if (orb == null) {
+                orb = ORB.init(new String[]{"-ORBInitialPort", String.valueOf(CORBA_PORT),
+                        "-ORBInitialHost", "127.0.0.1"}, null);
+            }
+            org.omg.CORBA.Object objRef = orb.resolve_initial_references("NameService");
+            NamingContextExt ncRef = NamingContextExtHelper.narrow(objRef);
+            tempsService = TempsHelper.narrow(ncRef.resolve_str("TempsService"));
+            timeServiceFailureLogged = false;
+        } catch (Exception e) {
+            // polled during startup and by the collector: log once per outage
+            if (!timeServiceFailureLogged) {
+                System.err.println("CORBA connection failed: " + e.getMessage());
+                timeServiceFailureLogged = true;
+            }
+        }
+        return tempsService;
+    }
+
+    /**
+     * Drops the stub after a failed call, the next getTimeService() resolves it again.
+     */
+    public void resetTimeService() {
+        tempsService = null;
+    }
+
+    /* ------------------- RMI device control ------------------- */
+
+    public boolean isDeviceControlReachable() {
+        return deviceControl.isReachable();
+    }
+
+    /**
+     * Turns every device off: one batched RMI command, one bulk update in
+     * storage, one event to the dashboards.
+     */
+    public List<Device> shutdownAllDevices() throws Exception {
+        List<String> names = new ArrayList<String>();
+        for (Device device : storage.getAllDevices()) {
+            names.add(device.getName());
+        }
+        return commandDevices(names, false);
+    }
+
+    /**
+     * Sends the new state of devices switched in storage (REST and SOAP power
+     * updates) to the RMI service, one command per state, then publishes
+     * them. Storage stays the reference: an RMI failure is only logged.
+     * Returns the devices.
+     */
+    public List<Device> powerChanged(List<Device> changed) {
+        List<String> on = new ArrayList<String>();
+        List<String> off = new ArrayList<String>();
+        for (Device device : changed) {
+            if (device.isOn()) on.add(device.getName());
+            else off.add(device.getName());
+        }
+        try {
+            if (!on.isEmpty()) deviceControl.commanderAppareils(on, true);
+            if (!off.isEmpty()) deviceControl.commanderAppareils(off, false);
+        } catch (Exception e) {
+            System.err.println("RMI device command failed: " + e.getMessage());
+        }
+        EventStream.getShared().publishDevices(changed);
+        return changed;
+    }
+
+    /**
+     * Sends one RMI command for all listed devices, then stores and publishes
+     * the new state of the devices the command was applied to.
+     * Returns those devices.
+     */
+    public List<Device> commandDevices(List<String> names, boolean isOn) throws Exception {
+        Map<String, Boolean> results = deviceControl.commanderAppareils(names, isOn);
+
+        List<String> applied = new ArrayList<String>();
+        for (String name : names) {
+            if (Boolean.TRUE.equals(results.get(name))) applied.add(name);
+        }
+        List<Device> changed = storage.setDevicesPower(applied, isOn);
+        EventStream.getShared().publishDevices(changed);
+        return changed;
+    }
+}
@@ -0,0 +1,196 @@
+package web;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Starts services as a dependency graph instead of one after another.
+ *
+ * Each phase waits only for the phases it depends on, runs its start action,
+ * then polls its readiness probe until it passes or the phase times out.
+ * Independent phases run in parallel. A phase whose dependency failed is
+ * skipped. run() prints per-phase timings and throws if a required phase
+ * did not become ready.
+ */
+public class StartupOrchestrator {
+
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    /**
+     * Returns true when ready, false to be polled again, or throws when the
+     * phase can no longer become ready.
+     */
+    public interface Probe {
+        boolean isReady() throws Exception;
+    }
+
+    private static final long POLL_INTERVAL_MS = 50;
+
+    private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+
+    /**
+     * Adds a phase. Dependencies must already have been added, so the graph
+     * cannot contain cycles.
+     */
+    public StartupOrchestrator add(String name, boolean required, long timeoutMs,
+                                   Action start, Probe probe, String... dependsOn) {
+        if (phases.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate startup phase: " + name);
+        }
+        List<Phase> dependencies = new ArrayList<Phase>();
+        for (String dependency : dependsOn) {
+            Phase phase = phases.get(dependency);
+            if (phase == null) {
+                throw new IllegalArgumentException("Startup phase " + name + " depends on unknown phase " + dependency);
+            }
+            dependencies.add(phase);
+        }
+        phases.put(name, new Phase(name, required, timeoutMs, start, probe, dependencies));
+        return this;
+    }
+
+    /**
+     * Starts every phase and waits until all of them are ready, failed or skipped.
+     */
+    public void run() throws Exception {
+        final long origin = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, phases.size()), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "startup");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            for (final Phase phase : phases.values()) {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        phase.execute(origin);
+                    }
+                });
+            }
+            for (Phase phase : phases.values()) {
+                phase.done.await();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        report(System.currentTimeMillis() - origin);
+
+        for (Phase phase : phases.values()) {
+            if (phase.required && !phase.ready) {
+                throw new Exception("Required service '" + phase.name + "' did not start: " + phase.failure);
+            }
+        }
+    }
+
+    private void report(long totalMs) {
+        System.out.println("\nStartup timings (ms since start):");
+        for (Phase phase : phases.values()) {
+            String line;
+            if (phase.ready) {
+                line = String.format("  %-14s start %6d  ready %6d  (%d ms)", phase.name,
+                        phase.startedAt, phase.finishedAt, phase.finishedAt - phase.startedAt);
+            } else {
+                line = String.format("  %-14s %s", phase.name, phase.failure);
+            }
+            System.out.println(line);
+        }
+        System.out.println("  total          " + totalMs + " ms");
+    }
+
+    /**
+     * Probe that passes once something accepts TCP connections on the port.
+     */
+    public static Probe portOpen(final String host, final int port) {
+        return new Probe() {
+            @Override
+            public boolean isReady() {
+                return acceptsConnections(host, port);
+            }
+        };
+    }
+
+    public static boolean acceptsConnections(String host, int port) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), 200);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /* ------------------- Phase ------------------- */
+
+    private static class Phase {
+        final String name;
+        final boolean required;
+        final long timeoutMs;
+        final Action start;
+        final Probe probe;
+        final List<Phase> dependencies;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        volatile boolean ready;
+        volatile String failure;
+        volatile long startedAt;
+        volatile long finishedAt;
+
+        Phase(String name, boolean required, long timeoutMs, Action start, Probe probe, List<Phase> dependencies) {
+            this.name = name;
+            this.required = required;
+            this.timeoutMs = timeoutMs;
+            this.start = start;
+            this.probe = probe;
+            this.dependencies = dependencies;
+        }
+
+        void execute(long origin) {
+            try {
+                for (Phase dependency : dependencies) {
+                    dependency.done.await();
+                    if (!dependency.ready) {
+                        failure = "skipped (" + dependency.name + " not ready)";
+                        return;
+                    }
+                }
+                startedAt = System.currentTimeMillis() - origin;
+                start.run();
+                long deadline = System.currentTimeMillis() + timeoutMs;
+                while (!probe.isReady()) {
+                    if (System.currentTimeMillis() >= deadline) {
+                        failure = "not ready after " + timeoutMs + " ms";
+                        return;
+                    }
+                    Thread.sleep(POLL_INTERVAL_MS);
+                }
+                finishedAt = System.currentTimeMillis() - origin;
+                ready = true;
+            } catch (InterruptedException e) {
+                failure = "interrupted";
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                failure = "failed: " + e.getMessage();
+            } finally {
+                System.out.println((ready ? "  ✓ " : "  ✗ ") + name + (ready ? "" : " " + failure));
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package web;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistence of the energy history and the devices.
+ *
+ * Selected with -Dsmarthome.storage: "mongodb" (default, MongoDBManager) or
+ * "embedded" (EmbeddedStorage, local files, no database server).
+ */
+public interface StorageBackend {
+
+    int DEFAULT_HISTORY_LIMIT = 100;
+    int MAX_HISTORY_LIMIT = 10000;
+
+    static StorageBackend fromSystemProperties() {
+        String backend = System.getProperty("smarthome.storage", "mongodb");
+        if ("embedded".equalsIgnoreCase(backend)) {
+            return EmbeddedStorage.fromSystemProperties();
+        }
+        return new MongoDBManager();
+    }
+
+    void init();
+
+    void close();
+
+    /**
+     * True when the backend answers, polled at startup. init() does not
+     * fail when the database is down.
+     */
+    boolean isReady();
+
+    /* -------------------- ENERGY HISTORY -------------------- */
+
+    void saveEnergyRecord(EnergyRecord record);
+
+    /**
+     * Records accepted but not written yet.
+     */
+    int getPendingEnergyWrites();
+
+    default List<EnergyRecord> getEnergyHistory() {
+        return getEnergyHistory(null, null, DEFAULT_HISTORY_LIMIT);
+    }
+
+    /**
+     * Raw records with from <= timestamp <= to (either bound may be null), newest first.
+     *
+     * @param limit maximum number of records, capped at MAX_HISTORY_LIMIT
+     */
+    List<EnergyRecord> getEnergyHistory(Long from, Long to, int limit);
+
+    /**
+     * Raw records with timestamp > since, oldest first, for incremental
+     * polling: the last timestamp returned is the next since.
+     *
+     * @param limit maximum number of records, capped at MAX_HISTORY_LIMIT
+     */
+    List<EnergyRecord> getEnergyHistoryAfter(long since, int limit);
+
+    /**
+     * Minute/hour/day aggregates over the same range, shaped as described in
+     * EnergyRollups.find.
+     */
+    List<Map<String, Object>> getEnergyRollups(EnergyRollups.Resolution resolution, Long from, Long to, int limit);
+
+    EnergyRecord getLatestEnergyRecord();
+
+    /* -------------------- DEVICES -------------------- */
+
+    boolean deviceExistsByName(String name);
+
+    Device getDevice(String name);
+
+    Device findDeviceIgnoreCase(String name);
+
+    /**
+     * Insert a device. Returns true if inserted, false if duplicate.
+     */
+    default boolean insertDevice(String name, double baseConsumption, boolean isOn) {
+        return insertDevice(name, baseConsumption, isOn, null);
+    }
+
+    /**
+     * Insert a device in a group (null for none). Returns true if inserted, false if duplicate.
+     */
+    boolean insertDevice(String name, double baseConsumption, boolean isOn, String group);
+
+    /**
+     * Insert or update a device by name, keeping its group.
+     */
+    void upsertDevice(String name, double baseConsumption, boolean isOn);
+
+    boolean removeDevice(String name);
+
+    /**
+     * The single-device updates return the device after the update, or null
+     * if there is no such device.
+     */
+    Device setDevicePower(String name, boolean isOn);
+
+    Device toggleDevicePower(String name);
+
+    Device updateDeviceConsumption(String name, double newConsumption);
+
+    /**
+     * Moves the device to a group (null removes it from its group).
+     */
+    Device setDeviceGroup(String name, String group);
+
+    /**
+     * Changes after every device insert, update or removal.
+     */
+    long getDevicesVersion();
+
+    /**
+     * Sorted by name.
+     */
+    List<Device> getAllDevices();
+
+    /**
+     * Devices in the group, or devices without a group when group is null.
+     */
+    List<Device> getDevicesByGroup(String group);
+
+    List<Device> getDevicesByStatus(boolean isOn);
+
+    double getTotalConsumptionForOnDevices();
+
+    /* -------------------- BULK POWER UPDATES -------------------- */
+
+    /**
+     * The bulk updates return the devices that exist, in their new state.
+     */
+    List<Device> setDevicesPower(Collection<String> names, boolean isOn);
+
+    List<Device> setGroupPower(String group, boolean isOn);
+
+    List<Device> setAllDevicesPower(boolean isOn);
+
+    /**
+     * Devices matching every non-null condition; no condition matches every device.
+     */
+    List<Device> setDevicesPowerWhere(Boolean currentlyOn, String group, Double minConsumption,
+                                      Double maxConsumption, boolean isOn);
+
+    /**
+     * Different power states per device.
+     */
+    List<Device> setDevicesPower(Map<String, Boolean> states);
+
+    default void seedDefaultDevicesIfEmpty() {
+        try {
+            if (!getAllDevices().isEmpty()) return;
+
+            insertDevice("Heating System", 25.0, true);
+            insertDevice("Air Conditioner", 30.0, false);
+            insertDevice("Water Heater", 15.0, true);
+            insertDevice("Lighting Grid", 10.0, true);
+            insertDevice("Entertainment System", 5.0, false);
+
+            System.out.println("Seeded default devices.");
+        } catch (Exception e) {
+            System.err.println("Failed to seed devices: " + e.getMessage());
+        }
+    }
+}
@@ -3,37 +3,46 @@ package web;
 import com.sun.net.httpserver.*;
 import org.json.*;
 import corba.SmartHome.*;
-import org.omg.CORBA.ORB;
-import org.omg.CosNaming.*;
 
+import metrics.Metrics;
 import soap.SoapServicePublisher;
 
 import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
-import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 public class WebServer {
 
-    private static ORB orb;
-    private static Temps tempsService;
     private static final int WEB_PORT = 8088;
     private static final int SOAP_PORT = 8089;
-    private static final int CORBA_PORT = 1050;
-    private static final int RMI_PORT = 1100;
+    private static final int CORBA_PORT = SmartHomeCore.CORBA_PORT;
+    private static final int RMI_PORT = SmartHomeCore.RMI_PORT;
 
-    private static Process orbdProcess;
+    private static final long SERVICE_START_TIMEOUT_MS = Long.getLong("smarthome.startup.timeoutMs", 15000L);
+
+    private static volatile Process orbdProcess;
     private static Thread corbaServerThread;
-    private static Thread rmiServerThread;
     private static HttpServer httpServer;
+    private static NioHttpServer nioServer;
+    private static HttpExecutor httpExecutor;
 
-    // Shared DB manager
-    private static final MongoDBManager databaseManager = new MongoDBManager();
+    // Storage, time source, predictions, device control and threshold, shared with SOAP
+    private static volatile SmartHomeCore core;
+    private static volatile StorageBackend databaseManager;
 
     private static final List<Map<String, Object>> notifications = new CopyOnWriteArrayList<>();
-    private static double threshold = 70.0;
+    private static final AtomicLong notificationsVersion = new AtomicLong();
+
+    // Bodies of the read endpoints, rebuilt when their data version changes
+    private static final ResponseCache responseCache = new ResponseCache(64);
+    // Larger history responses are streamed instead of cached
+    private static final int CACHED_HISTORY_LIMIT = 1000;
+    private static volatile ResponseCache.Entry dashboardPage;
     private static boolean isRunning = true;
 
     public static void main(String[] args) {
@@ -50,16 +59,7 @@ public class WebServer {
         }));
 
         try {
-            databaseManager.init();
-            databaseManager.seedDefaultDevicesIfEmpty();
-
-            startORBD();
-            startCORBAServer();
-            startRMIServer();
-            initCORBA(args);
-
-            startSOAPServices();
-            startHTTPServer();
+            startServices();
             startBackgroundCollector();
 
             System.out.println("\n╔════════════════════════════════════════════════════════════╗");
@@ -68,7 +68,7 @@ public class WebServer {
             System.out.println("\n🌐 Dashboard URL: http://localhost:" + WEB_PORT);
             System.out.println("🌐 SOAP Services: http://localhost:" + SOAP_PORT + "/soap/");
             System.out.println("\nServices running:");
-            System.out.println("  ✓ Database Service (MongoDB)");
+            System.out.println("  ✓ Storage (" + System.getProperty("smarthome.storage", "mongodb") + ")");
             System.out.println("  ✓ CORBA Name Service (port " + CORBA_PORT + ")");
             System.out.println("  ✓ CORBA Server");
             System.out.println("  ✓ RMI Server (port " + RMI_PORT + ")");
@@ -94,30 +94,97 @@ public class WebServer {
         }
     }
 
-    /* ------------------- SOAP START / STOP ------------------- */
+    /* ------------------- Startup ------------------- */
 
-    private static void startSOAPServices() {
-        System.out.print("Starting SOAP Web Services... ");
-        try {
-            Thread soapThread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        SoapServicePublisher.publishServices();
-                    } catch (Exception e) {
-                        System.err.println("SOAP service error: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                }
-            });
-            soapThread.setDaemon(false);
-            soapThread.start();
-            try { Thread.sleep(2000); } catch (InterruptedException ignored) {}
-            System.out.println("✓");
-        } catch (Exception e) {
-            System.out.println("✗");
-            System.err.println("Warning: Could not start SOAP services: " + e.getMessage());
-        }
+    /**
+     * The shared core, ORBD and RMI start in parallel. The CORBA server waits
+     * for ORBD, SOAP and HTTP wait for the shared core, not for its storage to
+     * be reachable. Each phase is done when its probe passes, not after a
+     * fixed sleep. Only the HTTP server is required.
+     */
+    private static void startServices() throws Exception {
+        System.out.println("Starting services...");
+        StartupOrchestrator startup = new StartupOrchestrator();
+        startup.add("core", false, SERVICE_START_TIMEOUT_MS, new StartupOrchestrator.Action() {
+            @Override
+            public void run() {
+                core = SmartHomeCore.getShared();
+                databaseManager = core.getStorage();
+            }
+        }, new StartupOrchestrator.Probe() {
+            @Override
+            public boolean isReady() {
+                // getShared() is synchronous
+                return core != null;
+            }
+        });
+        startup.add("storage", false, SERVICE_START_TIMEOUT_MS, new StartupOrchestrator.Action() {
+            @Override
+            public void run() {
+                // connected by the core, which survives a storage that is down
+            }
+        }, new StartupOrchestrator.Probe() {
+            @Override
+            public boolean isReady() {
+                return databaseManager.isReady();
+            }
+        }, "core");
+        startup.add("orbd", false, SERVICE_START_TIMEOUT_MS, new StartupOrchestrator.Action() {
+            @Override
+            public void run() throws Exception {
+                startORBD();
+            }
+        }, new StartupOrchestrator.Probe() {
+            @Override
+            public boolean isReady() throws Exception {
+                Process process = orbdProcess;
+                if (process != null && !process.isAlive()) throw new Exception("ORBD exited. Please start it manually.");
+                return StartupOrchestrator.acceptsConnections("127.0.0.1", CORBA_PORT);
+            }
+        });
+        startup.add("rmi", false, SERVICE_START_TIMEOUT_MS, new StartupOrchestrator.Action() {
+            @Override
+            public void run() {
+                rmi.AppareilImpl.main(new String[]{});
+            }
+        }, new StartupOrchestrator.Probe() {
+            @Override
+            public boolean isReady() {
+                return isRMIBound();
+            }
+        });
+        startup.add("corba", false, SERVICE_START_TIMEOUT_MS, new StartupOrchestrator.Action() {
+            @Override
+            public void run() {
+                startCORBAServer();
+            }
+        }, new StartupOrchestrator.Probe() {
+            @Override
+            public boolean isReady() {
+                // TempsService is bound in the name service
+                return core.getTimeService() != null;
+            }
+        }, "orbd", "core");
+        startup.add("soap", false, SERVICE_START_TIMEOUT_MS, new StartupOrchestrator.Action() {
+            @Override
+            public void run() {
+                SoapServicePublisher.publishServices();
+            }
+        }, new StartupOrchestrator.Probe() {
+            @Override
+            public boolean isReady() throws Exception {
+                // publishServices() is synchronous
+                if (!SoapServicePublisher.isRunning()) throw new Exception("SOAP endpoints not published");
+                return true;
+            }
+        }, "core");
+        startup.add("http", true, SERVICE_START_TIMEOUT_MS, new StartupOrchestrator.Action() {
+            @Override
+            public void run() throws Exception {
+                startHTTPServer();
+            }
+        }, StartupOrchestrator.portOpen("127.0.0.1", WEB_PORT), "core");
+        startup.run();
     }
 
     private static void stopSOAPServices() {
@@ -131,21 +198,122 @@ public class WebServer {
     /* ------------------- HTTP Server / Handlers ------------------- */
 
     private static void startHTTPServer() throws Exception {
-        System.out.print("Starting Web Server... ");
-        httpServer = HttpServer.create(new InetSocketAddress(WEB_PORT), 0);
-        httpServer.createContext("/", new DashboardHandler());
-        httpServer.createContext("/api/status", new StatusHandler());
-        httpServer.createContext("/api/realtime", new RealtimeHandler());
-        httpServer.createContext("/api/history", new HistoryHandler());
-        httpServer.createContext("/api/predict", new PredictHandler());
-        httpServer.createContext("/api/device", new DeviceHandler());
-        httpServer.createContext("/api/notifications", new NotificationsHandler());
-        httpServer.createContext("/api/threshold", new ThresholdHandler());
-        httpServer.createContext("/api/devices", new DevicesHandler());
-        httpServer.createContext("/api/soap-info", new SoapInfoHandler());
-        httpServer.setExecutor(Executors.newFixedThreadPool(10));
-        httpServer.start();
-        System.out.println("✓");
+        Router router = new Router();
+        route(router, "/", new DashboardHandler());
+        route(router, "/api/status", new StatusHandler());
+        route(router, "/api/realtime", new RealtimeHandler());
+        route(router, "/api/history", new HistoryHandler());
+        route(router, "/api/predict", new PredictHandler());
+        route(router, "/api/device", new DeviceHandler());
+        route(router, "/api/notifications", new NotificationsHandler());
+        route(router, "/api/threshold", new ThresholdHandler());
+        route(router, "/api/devices", new DevicesHandler());
+        route(router, "/api/devices/power", new DevicesPowerHandler());
+        route(router, "/api/devices/group", new DeviceGroupHandler());
+        route(router, "/api/soap-info", new SoapInfoHandler());
+        route(router, "/api/stream", new StreamHandler());
+        route(router, "/api/metrics", new MetricsHandler());
+        route(router, "/api/snapshot", new SnapshotHandler());
+        registerGauges();
+        httpExecutor = HttpExecutor.fromSystemProperties();
+        httpExecutor.registerGauges();
+
+        String engine = System.getProperty("smarthome.http.engine", "jdk");
+        if ("nio".equalsIgnoreCase(engine)) {
+            nioServer = new NioHttpServer(new InetSocketAddress(WEB_PORT), router, httpExecutor);
+            nioServer.registerGauges();
+            nioServer.start();
+        } else {
+            httpServer = HttpServer.create(new InetSocketAddress(WEB_PORT), 0);
+            router.mountOn(httpServer);
+            httpServer.setExecutor(httpExecutor);
+            httpServer.start();
+        }
+        System.out.println("HTTP engine: " + engine.toLowerCase() + ", executor: " + httpExecutor.getMode().name().toLowerCase());
+    }
+
+    private static void route(Router router, String path, HttpHandler handler) {
+        router.add(path, new TimedHandler("http." + path, handler));
+    }
+
+    /**
+     * Records the latency of every request to a context, and counts exceptions
+     * and 5xx responses as errors. Requests shed by HttpExecutor get a 503
+     * without reaching the handler.
+     */
+    static class TimedHandler implements HttpHandler {
+        private final String operation;
+        private final HttpHandler delegate;
+
+        TimedHandler(String operation, HttpHandler delegate) {
+            this.operation = operation;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (HttpExecutor.isShedding()) {
+                Metrics.error(operation);
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                delegate.handle(exchange);
+                if (exchange.getResponseCode() >= 500) Metrics.error(operation);
+            } catch (IOException | RuntimeException e) {
+                Metrics.error(operation);
+                throw e;
+            } finally {
+                Metrics.time(operation, start);
+            }
+        }
+    }
+
+    private static void registerGauges() {
+        Metrics.gauge("sse_clients", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return EventStream.getShared().clientCount();
+            }
+        });
+        Metrics.gauge("devices", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return databaseManager.getAllDevices().size();
+            }
+        });
+        Metrics.gauge("devices_on_consumption", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return databaseManager.getTotalConsumptionForOnDevices();
+            }
+        });
+        Metrics.gauge("energy_write_buffer_pending", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return databaseManager.getPendingEnergyWrites();
+            }
+        });
+        Metrics.gauge("threshold", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return core.getThreshold();
+            }
+        });
+    }
+
+    /**
+     * GET /api/metrics in Prometheus text format.
+     */
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            send(exchange, 200, "text/plain; version=0.0.4; charset=utf-8",
+                    Metrics.renderPrometheus().getBytes(StandardCharsets.UTF_8));
+        }
     }
 
     static class SoapInfoHandler implements HttpHandler {
@@ -182,12 +350,9 @@ public class WebServer {
             if ("OPTIONS".equals(exchange.getRequestMethod())) { exchange.sendResponseHeaders(204, -1); return; }
             String path = exchange.getRequestURI().getPath();
             if (path.equals("/") || path.equals("/index.html")) {
-                String html = getDashboardHTML();
-                exchange.getResponseHeaders().add("Content-Type", "text/html");
-                byte[] response = html.getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(200, response.length);
-                OutputStream os = exchange.getResponseBody();
-                try { os.write(response); } finally { os.close(); }
+                ResponseCache.Entry page = dashboardPage();
+                if (notModified(exchange, page.etag)) return;
+                sendCached(exchange, page);
             } else {
                 sendError(exchange, "Not Found");
             }
@@ -200,9 +365,9 @@ public class WebServer {
             setCORS(exchange);
             if ("OPTIONS".equals(exchange.getRequestMethod())) { exchange.sendResponseHeaders(204, -1); return; }
             JSONObject status = new JSONObject();
-            status.put("corba", tempsService != null ? "connected" : "disconnected");
+            status.put("corba", core.isTimeServiceConnected() ? "connected" : "disconnected");
             status.put("ml", "active");
-            status.put("rmi", checkRMI() ? "connected" : "disconnected");
+            status.put("rmi", core.isDeviceControlReachable() ? "connected" : "disconnected");
             status.put("nameService", orbdProcess != null && orbdProcess.isAlive() ? "running" : "stopped");
             status.put("webServer", "running");
             sendJSON(exchange, status.toString());
@@ -215,28 +380,278 @@ public class WebServer {
             setCORS(exchange);
             if ("OPTIONS".equals(exchange.getRequestMethod())) { exchange.sendResponseHeaders(204, -1); return; }
             try {
-                Map<String, Object> latestRecord = databaseManager.getLatestEnergyRecord();
+                EnergyRecord latestRecord = core.getLatestEnergyRecord();
                 if (latestRecord == null) {
                     sendError(exchange, "No data available yet.");
                     return;
                 }
-                sendJSON(exchange, new JSONObject(latestRecord).toString());
+                sendJSON(exchange, latestRecord.toJSON().toString());
             } catch (Exception e) {
                 sendError(exchange, "Failed to get realtime data: " + e.getMessage());
             }
         }
     }
 
+    /**
+     * GET /api/history[?from=ms&to=ms&limit=n&fields=a,b&resolution=auto|raw|minute|hour|day&since=ms&points=n]
+     * Without parameters: the last 100 records, as before. With a range and no
+     * resolution, the finest one returning at most limit points is used.
+     * since returns the limit raw records that follow it (oldest of them
+     * first read, newest first in the response); pass back the "cursor" of the
+     * response, the newest timestamp returned, to poll for the next ones
+     * without skipping any. points reads up to MAX_HISTORY_LIMIT
+     * records of the range and keeps n of them with LTTB (see Downsampler).
+     * A range too long for MAX_HISTORY_LIMIT raw records is read as rollups,
+     * and LTTB then picks buckets by their extreme (min or max) value.
+     */
     static class HistoryHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             setCORS(exchange);
             if ("OPTIONS".equals(exchange.getRequestMethod())) { exchange.sendResponseHeaders(204, -1); return; }
-            List<Map<String, Object>> history = databaseManager.getEnergyHistory();
-            JSONObject response = new JSONObject();
-            response.put("history", new JSONArray(history));
-            response.put("threshold", threshold);
-            sendJSON(exchange, response.toString());
+            Map<String, String> query = parseQuery(exchange);
+            final Long from;
+            final Long to;
+            final int limit;
+            final List<String> fields;
+            final EnergyRollups.Resolution resolution;
+            final int points;
+            final Long since;
+            try {
+                from = query.containsKey("from") ? Long.valueOf(query.get("from")) : null;
+                since = query.containsKey("since") ? Long.valueOf(query.get("since")) : null;
+                to = query.containsKey("to") ? Long.valueOf(query.get("to")) : null;
+                limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : StorageBackend.DEFAULT_HISTORY_LIMIT;
+                fields = query.containsKey("fields") ? Arrays.asList(query.get("fields").split(",")) : null;
+                points = query.containsKey("points") ? Integer.parseInt(query.get("points")) : 0;
+                if (query.containsKey("points") && points < 3) throw new IllegalArgumentException("points must be at least 3");
+                EnergyRollups.Resolution requested = EnergyRollups.Resolution.parse(query.get("resolution"));
+                if (since != null && requested != null && requested != EnergyRollups.Resolution.RAW) {
+                    throw new IllegalArgumentException("since only applies to raw records");
+                }
+                if (requested != null) resolution = requested;
+                else if (since != null) resolution = EnergyRollups.Resolution.RAW;
+                else resolution = EnergyRollups.Resolution.pick(from, to, points > 0 ? StorageBackend.MAX_HISTORY_LIMIT : limit);
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, "Invalid history parameter: " + e.getMessage());
+                return;
+            }
+
+            String accept = exchange.getRequestHeaders().getFirst("Accept");
+            final boolean columnar = accept != null && accept.contains(ColumnarWriter.CONTENT_TYPE);
+            String contentType = columnar ? ColumnarWriter.CONTENT_TYPE : "application/json";
+            String key = "history?" + exchange.getRequestURI().getRawQuery() + (columnar ? "#columnar" : "");
+            long version = core.getEnergyVersion();
+            String etag = ResponseCache.etag(key, version);
+            exchange.getResponseHeaders().add("Vary", "Accept");
+            if (notModified(exchange, etag)) return;
+            ResponseCache.Body body = new ResponseCache.Body() {
+                @Override
+                public void write(OutputStream os) throws IOException {
+                    if (columnar) {
+                        ColumnarWriter out = new ColumnarWriter(os);
+                        try {
+                            writeColumnar(out, from, to, since, limit, fields, resolution, points);
+                        } finally {
+                            out.close();
+                        }
+                        return;
+                    }
+                    JsonStreamWriter out = new JsonStreamWriter(os);
+                    try {
+                        writeHistory(out, from, to, since, limit, fields, resolution, points);
+                    } finally {
+                        out.close();
+                    }
+                }
+            };
+            int size = points > 0 ? points : limit;
+            if (since != null && size <= CACHED_HISTORY_LIMIT) {
+                // a since query is per client: not worth a cache entry
+                sendCached(exchange, ResponseCache.build(etag, version, contentType, body));
+            } else if (size <= CACHED_HISTORY_LIMIT) {
+                sendCached(exchange, responseCache.get(key, version, contentType, body));
+            } else {
+                // chunked: read before committing to a 200, so that a storage failure still gets an error
+                Slice slice;
+                try {
+                    slice = read(from, to, since, limit, resolution, points);
+                } catch (RuntimeException e) {
+                    sendError(exchange, "Failed to read history: " + e.getMessage());
+                    return;
+                }
+                Headers headers = exchange.getResponseHeaders();
+                headers.add("Content-Type", contentType);
+                headers.add("ETag", etag);
+                headers.add("Cache-Control", "no-cache");
+                headers.add("Vary", "Accept-Encoding");
+                boolean gzip = acceptsGzip(exchange);
+                if (gzip) headers.add("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream os = exchange.getResponseBody();
+                if (gzip) os = new GZIPOutputStream(os, 8192);
+                // closed only once complete: on a failure the exception drops the connection
+                // before the last chunk, so the client sees a truncated response, not a short one
+                if (columnar) {
+                    ColumnarWriter out = new ColumnarWriter(os);
+                    writeColumnar(out, slice, fields, resolution);
+                    out.close();
+                } else {
+                    JsonStreamWriter out = new JsonStreamWriter(os);
+                    writeHistory(out, slice, fields, resolution);
+                    out.close();
+                }
+            }
+        }
+
+        /**
+         * Records or rollup points of a history response, newest first.
+         */
+        private static final class Slice {
+            List<EnergyRecord> records;
+            List<Map<String, Object>> rollups;
+            // since for the next poll
+            Long cursor;
+        }
+
+        /**
+         * With points > 0, the range is read up to MAX_HISTORY_LIMIT and
+         * downsampled to that many points. With since (raw only), the records
+         * right after it are read oldest first, so none is skipped when more
+         * than limit arrived since the last poll.
+         */
+        private static Slice read(Long from, Long to, Long since, int limit, EnergyRollups.Resolution resolution,
+                                  int points) {
+            int max = points > 0 ? StorageBackend.MAX_HISTORY_LIMIT : limit;
+            Slice slice = new Slice();
+            if (resolution == EnergyRollups.Resolution.RAW) {
+                List<EnergyRecord> records;
+                if (since != null) {
+                    long after = from != null ? Math.max(since, from - 1) : since;
+                    List<EnergyRecord> oldestFirst = core.getEnergyHistoryAfter(after, max);
+                    records = new ArrayList<EnergyRecord>(oldestFirst.size());
+                    for (int i = oldestFirst.size() - 1; i >= 0; i--) {
+                        EnergyRecord record = oldestFirst.get(i);
+                        if (to == null || record.getTimestamp() <= to) records.add(record);
+                    }
+                    // nothing new: poll from the same place
+                    slice.cursor = after;
+                } else {
+                    records = core.getEnergyHistory(from, to, max);
+                }
+                long[] x = new long[records.size()];
+                double[] y = new double[records.size()];
+                for (int i = 0; i < x.length; i++) {
+                    EnergyRecord record = records.get(x.length - 1 - i);
+                    x[i] = record.getTimestamp();
+                    y[i] = record.getActual();
+                }
+                slice.records = new ArrayList<EnergyRecord>();
+                for (int i : newestFirst(x, y, points)) slice.records.add(records.get(i));
+                // the newest record read, kept by the downsampling too
+                if (x.length > 0) slice.cursor = x[x.length - 1];
+            } else {
+                List<Map<String, Object>> rollups = core.getEnergyRollups(resolution, from, to, max);
+                long[] x = new long[rollups.size()];
+                double[] y = new double[rollups.size()];
+                for (int i = 0; i < x.length; i++) {
+                    Map<String, Object> point = rollups.get(x.length - 1 - i);
+                    x[i] = ((Number) point.get("timestamp")).longValue();
+                    y[i] = extreme(point);
+                }
+                slice.rollups = new ArrayList<Map<String, Object>>();
+                for (int i : newestFirst(x, y, points)) slice.rollups.add(rollups.get(i));
+                if (x.length > 0) slice.cursor = x[x.length - 1];
+            }
+            return slice;
+        }
+
+        static void writeHistory(JsonStreamWriter out, Long from, Long to, Long since, int limit, List<String> fields,
+                                 EnergyRollups.Resolution resolution, int points) throws IOException {
+            writeHistory(out, read(from, to, since, limit, resolution, points), fields, resolution);
+        }
+
+        private static void writeHistory(JsonStreamWriter out, Slice slice, List<String> fields,
+                                         EnergyRollups.Resolution resolution) throws IOException {
+            out.beginObject().name("history").beginArray();
+            if (slice.records != null) {
+                for (EnergyRecord record : slice.records) record.writeJSON(out, fields);
+            } else {
+                for (Map<String, Object> point : slice.rollups) {
+                    if (fields != null) point.keySet().retainAll(fields);
+                    out.value(point);
+                }
+            }
+            out.endArray();
+            out.name("resolution").value(resolution.name().toLowerCase());
+            out.name("threshold").value(core.getThreshold());
+            out.name("cursor").value(slice.cursor);
+            out.endObject();
+        }
+
+        /**
+         * Same response as writeHistory, as a ColumnarWriter table.
+         */
+        static void writeColumnar(ColumnarWriter out, Long from, Long to, Long since, int limit, List<String> fields,
+                                  EnergyRollups.Resolution resolution, int points) throws IOException {
+            writeColumnar(out, read(from, to, since, limit, resolution, points), fields, resolution);
+        }
+
+        private static void writeColumnar(ColumnarWriter out, Slice slice, List<String> fields,
+                                          EnergyRollups.Resolution resolution) throws IOException {
+            Map<String, Object> meta = new LinkedHashMap<String, Object>();
+            meta.put("resolution", resolution.name().toLowerCase());
+            meta.put("threshold", core.getThreshold());
+            meta.put("cursor", slice.cursor);
+            if (slice.records != null) {
+                EnergyRecord.writeColumnar(out, meta, slice.records, fields);
+                return;
+            }
+            List<Map<String, Object>> rollups = slice.rollups;
+            int n = rollups.size();
+            List<String> columns = new ArrayList<String>();
+            if (n > 0) {
+                columns.addAll(new TreeSet<String>(rollups.get(0).keySet()));
+                if (fields != null) columns.retainAll(fields);
+            }
+            out.begin(meta, n, columns.size());
+            for (String column : columns) {
+                if ("timestamp".equals(column) || "count".equals(column)) {
+                    long[] values = new long[n];
+                    for (int i = 0; i < n; i++) values[i] = ((Number) rollups.get(i).get(column)).longValue();
+                    if ("timestamp".equals(column)) out.timestamps(column, values);
+                    else out.integers(column, values);
+                } else {
+                    double[] values = new double[n];
+                    for (int i = 0; i < n; i++) {
+                        Object value = rollups.get(i).get(column);
+                        values[i] = value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+                    }
+                    out.doubles(column, values);
+                }
+            }
+        }
+
+        /**
+         * Positions in the newest-first list of the points to write, given
+         * their timestamps and values oldest first.
+         */
+        /**
+         * The bucket's min or max, whichever is further from its average: the
+         * average alone would let LTTB drop the buckets holding the peaks.
+         */
+        private static double extreme(Map<String, Object> point) {
+            double average = ((Number) point.get("actual")).doubleValue();
+            double min = ((Number) point.get("actualMin")).doubleValue();
+            double max = ((Number) point.get("actualMax")).doubleValue();
+            return max - average >= average - min ? max : min;
+        }
+
+        private static int[] newestFirst(long[] x, double[] y, int points) {
+            int[] kept = Downsampler.lttb(x, y, points);
+            int[] positions = new int[kept.length];
+            for (int i = 0; i < kept.length; i++) positions[i] = x.length - 1 - kept[kept.length - 1 - i];
+            return positions;
         }
     }
 
@@ -252,12 +667,11 @@ public class WebServer {
                 int heure = request.getInt("heure");
                 int jour = request.getInt("jour");
                 int weekend = request.getInt("weekend");
-                String prediction = callMLPrediction(heure, jour, weekend);
-                double predictedConsumption = parsePrediction(prediction);
+                double predictedConsumption = core.predict(heure, jour, weekend);
                 JSONObject response = new JSONObject();
                 response.put("prediction", predictedConsumption);
-                response.put("status", predictedConsumption > threshold ? "ELEVEE" : "NORMAL");
-                response.put("threshold", threshold);
+                response.put("status", core.statusFor(predictedConsumption));
+                response.put("threshold", core.getThreshold());
                 sendJSON(exchange, response.toString());
             } catch (Exception e) {
                 sendError(exchange, "Prediction failed: " + e.getMessage());
@@ -276,19 +690,8 @@ public class WebServer {
             String action = path.substring(path.lastIndexOf('/') + 1);
 
             try {
-                rmi.AppareilInterface appareil = (rmi.AppareilInterface)
-                        Naming.lookup("rmi://localhost:" + RMI_PORT + "/AppareilService");
-
                 if ("shutdown-all".equals(action)) {
-                    appareil.eteindre();
-
-                    // turn off all devices in MongoDB
-                    List<Map<String, Object>> all = databaseManager.getAllDevices();
-                    for (Map<String, Object> doc : all) {
-                        String name = (String) doc.get("name");
-                        if (name != null) databaseManager.setDevicePower(name, false);
-                    }
-
+                    core.shutdownAllDevices();
                     addNotification("warning", "Manual shutdown command executed for all devices.", "RMI Service");
                 }
 
@@ -304,7 +707,7 @@ public class WebServer {
 
     /**
      * REST endpoint used by the webpage to show devices.
-     * Now reads from MongoDB 'devices' collection, which is also used by SOAP.
+     * Reads the in-memory device registry, kept in sync with the MongoDB 'devices' collection used by SOAP.
      */
     static class DevicesHandler implements HttpHandler {
         @Override
@@ -312,24 +715,227 @@ public class WebServer {
             setCORS(exchange);
             if ("OPTIONS".equals(exchange.getRequestMethod())) { exchange.sendResponseHeaders(204, -1); return; }
 
-            List<Map<String, Object>> all = databaseManager.getAllDevices();
-            JSONArray deviceArray = new JSONArray();
-            for (Map<String, Object> doc : all) {
-                JSONObject json = new JSONObject();
-                json.put("name", doc.get("name"));
+            long version = databaseManager.getDevicesVersion();
+            if (notModified(exchange, ResponseCache.etag("devices", version))) return;
+            sendCached(exchange, responseCache.get("devices", version, "application/json", new ResponseCache.Body() {
+                @Override
+                public void write(OutputStream os) throws IOException {
+                    JsonStreamWriter out = new JsonStreamWriter(os);
+                    try {
+                        writeDevices(out);
+                    } finally {
+                        out.close();
+                    }
+                }
+            }));
+        }
 
-                Object bc = doc.get("baseConsumption");
-                double baseConsumption = (bc instanceof Number) ? ((Number) bc).doubleValue() : 0.0;
+        static void writeDevices(JsonStreamWriter out) throws IOException {
+            out.beginArray();
+            for (Device device : databaseManager.getAllDevices()) {
+                out.beginObject();
+                out.name("name").value(device.getName());
+                // Keep frontend field names same as before
+                out.name("consumption").value(device.getBaseConsumption());
+                out.name("isOn").value(device.isOn());
+                if (device.getGroup() != null) out.name("group").value(device.getGroup());
+                out.endObject();
+            }
+            out.endArray();
+        }
+    }
 
-                Object on = doc.get("isOn");
-                boolean isOn = (on instanceof Boolean) ? (Boolean) on : false;
+    /**
+     * GET /api/snapshot[?include=realtime,history,notifications,devices&since=ms&limit=n]
+     * Everything a dashboard refresh needs in one response. Each section holds
+     * what the endpoint of the same name returns (realtime is null before the
+     * first sample); with since, history holds the limit raw records that
+     * follow it, and its cursor is the since of the next refresh. The ETag
+     * moves with any of the included sections.
+     */
+    static class SnapshotHandler implements HttpHandler {
+        private static final List<String> SECTIONS = Arrays.asList("realtime", "history", "notifications", "devices");
 
-                // Keep frontend field names same as before
-                json.put("consumption", baseConsumption);
-                json.put("isOn", isOn);
-                deviceArray.put(json);
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            setCORS(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) { exchange.sendResponseHeaders(204, -1); return; }
+            Map<String, String> query = parseQuery(exchange);
+            final List<String> include;
+            final Long since;
+            final int limit;
+            try {
+                include = sections(query.get("include"));
+                since = query.containsKey("since") ? Long.valueOf(query.get("since")) : null;
+                limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : StorageBackend.DEFAULT_HISTORY_LIMIT;
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, "Invalid snapshot parameter: " + e.getMessage());
+                return;
+            }
+
+            // every counter only grows, so their sum changes whenever one of them does
+            long version = 0;
+            if (include.contains("realtime") || include.contains("history")) version += core.getEnergyVersion();
+            if (include.contains("notifications")) version += notificationsVersion.get();
+            if (include.contains("devices")) version += databaseManager.getDevicesVersion();
+            String key = "snapshot?" + exchange.getRequestURI().getRawQuery();
+            String etag = ResponseCache.etag(key, version);
+            if (notModified(exchange, etag)) return;
+            ResponseCache.Body body = new ResponseCache.Body() {
+                @Override
+                public void write(OutputStream os) throws IOException {
+                    JsonStreamWriter out = new JsonStreamWriter(os);
+                    try {
+                        writeSnapshot(out, include, since, limit);
+                    } finally {
+                        out.close();
+                    }
+                }
+            };
+            // a since query is per client: not worth a cache entry
+            sendCached(exchange, since == null
+                    ? responseCache.get(key, version, "application/json", body)
+                    : ResponseCache.build(etag, version, "application/json", body));
+        }
+
+        private static List<String> sections(String include) {
+            if (include == null || include.isEmpty()) return SECTIONS;
+            List<String> requested = Arrays.asList(include.split(","));
+            for (String section : requested) {
+                if (!SECTIONS.contains(section)) throw new IllegalArgumentException("unknown section " + section);
+            }
+            List<String> sections = new ArrayList<String>(SECTIONS);
+            sections.retainAll(requested);
+            return sections;
+        }
+
+        private static void writeSnapshot(JsonStreamWriter out, List<String> include, Long since, int limit)
+                throws IOException {
+            out.beginObject();
+            if (include.contains("realtime")) {
+                EnergyRecord latest = core.getLatestEnergyRecord();
+                out.name("realtime");
+                if (latest != null) latest.writeJSON(out, null);
+                else out.value((String) null);
+            }
+            if (include.contains("history")) {
+                out.name("history");
+                HistoryHandler.writeHistory(out, null, null, since, limit, null, EnergyRollups.Resolution.RAW, 0);
+            }
+            if (include.contains("notifications")) {
+                out.name("notifications").beginArray();
+                for (Map<String, Object> notification : notifications) out.value(notification);
+                out.endArray();
+            }
+            if (include.contains("devices")) {
+                out.name("devices");
+                DevicesHandler.writeDevices(out);
+            }
+            out.endObject();
+        }
+    }
+
+    /**
+     * POST /api/devices/power - turns many devices on or off with one bulk update.
+     * Body: {"isOn": false, "names": [...]} | {"isOn": false, "group": "Kitchen"}
+     *     | {"isOn": false, "all": true}
+     *     | {"isOn": false, "filter": {"isOn": true, "group": "...", "minConsumption": 10, "maxConsumption": 50}}
+     *     | {"states": {"Heating System": false, "Lighting Grid": true}}
+     */
+    static class DevicesPowerHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            setCORS(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) { exchange.sendResponseHeaders(204, -1); return; }
+            if (!"POST".equals(exchange.getRequestMethod())) { sendError(exchange, "Method not allowed"); return; }
+            try {
+                String body = new String(readAllBytesFromStream(exchange.getRequestBody()), StandardCharsets.UTF_8);
+                JSONObject request = new JSONObject(body);
+                List<Device> changed;
+                if (request.has("states")) {
+                    JSONObject states = request.getJSONObject("states");
+                    Map<String, Boolean> wanted = new HashMap<String, Boolean>();
+                    for (String name : states.keySet()) {
+                        wanted.put(name, states.getBoolean(name));
+                    }
+                    changed = databaseManager.setDevicesPower(wanted);
+                } else {
+                    boolean isOn = request.getBoolean("isOn");
+                    if (request.has("names")) {
+                        JSONArray array = request.getJSONArray("names");
+                        List<String> names = new ArrayList<String>();
+                        for (int i = 0; i < array.length(); i++) names.add(array.getString(i));
+                        changed = databaseManager.setDevicesPower(names, isOn);
+                    } else if (request.has("group")) {
+                        changed = databaseManager.setGroupPower(request.getString("group"), isOn);
+                    } else if (request.optBoolean("all", false)) {
+                        changed = databaseManager.setAllDevicesPower(isOn);
+                    } else if (request.has("filter")) {
+                        JSONObject filter = request.getJSONObject("filter");
+                        changed = databaseManager.setDevicesPowerWhere(
+                                filter.has("isOn") ? Boolean.valueOf(filter.getBoolean("isOn")) : null,
+                                filter.has("group") ? filter.getString("group") : null,
+                                filter.has("minConsumption") ? Double.valueOf(filter.getDouble("minConsumption")) : null,
+                                filter.has("maxConsumption") ? Double.valueOf(filter.getDouble("maxConsumption")) : null,
+                                isOn);
+                    } else {
+                        sendError(exchange, "Expected one of: names, group, all, filter, states");
+                        return;
+                    }
+                }
+                core.powerChanged(changed);
+
+                JSONArray names = new JSONArray();
+                for (Device device : changed) names.put(device.getName());
+                JSONObject response = new JSONObject();
+                response.put("success", true);
+                response.put("updated", changed.size());
+                response.put("devices", names);
+                sendJSON(exchange, response.toString());
+            } catch (Exception e) {
+                sendError(exchange, "Bulk power update failed: " + e.getMessage());
             }
-            sendJSON(exchange, deviceArray.toString());
+        }
+    }
+
+    /**
+     * POST /api/devices/group - {"name": "...", "group": "Kitchen"} (group null or absent to clear).
+     */
+    static class DeviceGroupHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            setCORS(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) { exchange.sendResponseHeaders(204, -1); return; }
+            if (!"POST".equals(exchange.getRequestMethod())) { sendError(exchange, "Method not allowed"); return; }
+            try {
+                String body = new String(readAllBytesFromStream(exchange.getRequestBody()), StandardCharsets.UTF_8);
+                JSONObject request = new JSONObject(body);
+                String name = request.getString("name");
+                String group = request.isNull("group") ? null : request.getString("group");
+                if (databaseManager.setDeviceGroup(name, group) == null) {
+                    sendError(exchange, "Device not found: " + name);
+                    return;
+                }
+                JSONObject response = new JSONObject();
+                response.put("success", true);
+                response.put("name", name);
+                response.put("group", group != null ? group : JSONObject.NULL);
+                sendJSON(exchange, response.toString());
+            } catch (Exception e) {
+                sendError(exchange, "Failed to set device group: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Server-Sent Events stream of changes, replaces polling the four read endpoints.
+     */
+    static class StreamHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            setCORS(exchange);
+            if ("OPTIONS".equals(exchange.getRequestMethod())) { exchange.sendResponseHeaders(204, -1); return; }
+            EventStream.getShared().register(exchange);
         }
     }
 
@@ -338,7 +944,14 @@ public class WebServer {
         public void handle(HttpExchange exchange) throws IOException {
             setCORS(exchange);
             if ("OPTIONS".equals(exchange.getRequestMethod())) { exchange.sendResponseHeaders(204, -1); return; }
-            sendJSON(exchange, new JSONArray(notifications).toString());
+            long version = notificationsVersion.get();
+            if (notModified(exchange, ResponseCache.etag("notifications", version))) return;
+            sendCached(exchange, responseCache.get("notifications", version, "application/json", new ResponseCache.Body() {
+                @Override
+                public void write(OutputStream os) throws IOException {
+                    os.write(new JSONArray(notifications).toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }));
         }
     }
 
@@ -351,10 +964,10 @@ public class WebServer {
             try {
                 String body = new String(readAllBytesFromStream(exchange.getRequestBody()), StandardCharsets.UTF_8);
                 JSONObject request = new JSONObject(body);
-                threshold = request.getDouble("threshold");
+                core.setThreshold(request.getDouble("threshold"));
                 JSONObject response = new JSONObject();
                 response.put("success", true);
-                response.put("threshold", threshold);
+                response.put("threshold", core.getThreshold());
                 sendJSON(exchange, response.toString());
             } catch (Exception e) {
                 sendError(exchange, "Failed to update threshold: " + e.getMessage());
@@ -369,69 +982,63 @@ public class WebServer {
         scheduler.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
+                long start = System.nanoTime();
                 try {
                     collectEnergyData();
-                } catch (Exception e) { /* silently ignore */ }
+                } catch (Exception e) {
+                    Metrics.error("collector.tick");
+                } finally {
+                    Metrics.time("collector.tick", start);
+                }
             }
         }, 5, 5, TimeUnit.SECONDS);
     }
 
     private static void collectEnergyData() {
         try {
-            if (tempsService == null) { initCORBA(new String[]{}); return; }
+            Temps tempsService = core.getTimeService();
+            if (tempsService == null) return;
 
-            // compute currentActualConsumption from MongoDB devices
-            double currentActualConsumption = 0.0;
+            // compute currentActualConsumption from the in-memory device registry
+            double currentActualConsumption = databaseManager.getTotalConsumptionForOnDevices();
 
-            List<Map<String, Object>> allDevices = databaseManager.getAllDevices();
-            for (Map<String, Object> doc : allDevices) {
-                Object on = doc.get("isOn");
-                boolean isOn = (on instanceof Boolean) ? (Boolean) on : false;
-
-                Object bc = doc.get("baseConsumption");
-                double baseConsumption = (bc instanceof Number) ? ((Number) bc).doubleValue() : 0.0;
+            // noise
+            currentActualConsumption += (Math.random() * 4 - 2);
 
-                if (isOn) currentActualConsumption += baseConsumption;
+            int heure;
+            int jour;
+            int weekend;
+            long corbaStart = System.nanoTime();
+            try {
+                heure = tempsService.getHeure();
+                jour = tempsService.getJour();
+                weekend = tempsService.getWeekend();
+            } catch (Exception e) {
+                // stale stub, resolve again on the next tick
+                Metrics.error("corba.getTime");
+                core.resetTimeService();
+                return;
+            } finally {
+                Metrics.time("corba.getTime", corbaStart);
             }
+            double predictedConsumption = core.predict(heure, jour, weekend);
 
-            // noise
-            currentActualConsumption += (Math.random() * 4 - 2);
+            EnergyRecord data = new EnergyRecord(System.currentTimeMillis(), heure, jour, weekend,
+                    Math.round(currentActualConsumption * 10.0) / 10.0,
+                    Math.round(predictedConsumption * 10.0) / 10.0,
+                    core.statusFor(currentActualConsumption));
+            core.recordEnergy(data);
+            EventStream.getShared().publishEnergyRecord(data);
 
-            int heure = tempsService.getHeure();
-            int jour = tempsService.getJour();
-            int weekend = tempsService.getWeekend();
-            String prediction = callMLPrediction(heure, jour, weekend);
-            double predictedConsumption = parsePrediction(prediction);
-
-            Map<String, Object> data = new HashMap<String, Object>();
-            data.put("timestamp", System.currentTimeMillis());
-            data.put("heure", heure);
-            data.put("jour", jour);
-            data.put("weekend", weekend);
-            data.put("actual", Math.round(currentActualConsumption * 10.0) / 10.0);
-            data.put("predicted", Math.round(predictedConsumption * 10.0) / 10.0);
-            data.put("status", currentActualConsumption > threshold ? "ELEVEE" : "NORMAL");
-            databaseManager.saveEnergyRecord(data);
-
-            if (currentActualConsumption > threshold) {
-                addNotification("alert", "High consumption detected: " + data.get("actual") + " kWh", "System Alert");
+            if (currentActualConsumption > core.getThreshold()) {
+                addNotification("alert", "High consumption detected: " + data.getActual() + " kWh", "System Alert");
                 try {
-                    rmi.AppareilInterface appareil = (rmi.AppareilInterface)
-                            Naming.lookup("rmi://localhost:" + RMI_PORT + "/AppareilService");
-                    appareil.eteindre();
-
-                    // turn off all devices in MongoDB
-                    List<Map<String, Object>> all = databaseManager.getAllDevices();
-                    for (Map<String, Object> doc : all) {
-                        String name = (String) doc.get("name");
-                        if (name != null) {
-                            databaseManager.setDevicePower(name, false);
-                        }
-                    }
-
+                    core.shutdownAllDevices();
                 } catch (Exception e) { /* silently ignore */ }
             }
-        } catch (Exception e) { /* silently ignore */ }
+        } catch (Exception e) {
+            Metrics.error("collector.tick");
+        }
     }
 
     private static void addNotification(String type, String message, String source) {
@@ -446,17 +1053,22 @@ public class WebServer {
         if (notifications.size() > 50) {
             notifications.remove(notifications.size() - 1);
         }
+        notificationsVersion.incrementAndGet();
+        EventStream.getShared().publishNotification(notif);
     }
 
     private static void cleanup() {
         System.out.println("\nStopping services gracefully...");
         isRunning = false;
-        if (httpServer != null) {
-            httpServer.stop(1);
+        if (httpServer != null || nioServer != null) {
+            if (httpServer != null) httpServer.stop(1);
+            if (nioServer != null) nioServer.stop(1);
+            if (httpExecutor != null) httpExecutor.shutdown();
             System.out.println("  ✓ Web Server stopped");
         }
+        EventStream.getShared().close();
         stopSOAPServices();
-        databaseManager.close();
+        SmartHomeCore.shutdownShared();
         if (orbdProcess != null && orbdProcess.isAlive()) {
             orbdProcess.destroy();
             System.out.println("  ✓ CORBA Name Service process terminated");
@@ -466,26 +1078,24 @@ public class WebServer {
 
     /* ------------------- CORBA / RMI / ORBD Helpers ------------------- */
 
-    private static void startORBD() {
+    private static void startORBD() throws Exception {
+        if (isPortInUse(CORBA_PORT)) {
+            System.out.println("CORBA Name Service already running");
+            return;
+        }
+        ProcessBuilder pb = new ProcessBuilder("orbd", "-ORBInitialPort", String.valueOf(CORBA_PORT), "-ORBInitialHost", "localhost");
+        pb.redirectErrorStream(true);
         try {
-            System.out.print("Starting CORBA Name Service... ");
-            if (isPortInUse(CORBA_PORT)) {
-                System.out.println("✓ (already running)");
-                return;
-            }
-            ProcessBuilder pb = new ProcessBuilder("orbd", "-ORBInitialPort", String.valueOf(CORBA_PORT), "-ORBInitialHost", "localhost");
-            pb.redirectErrorStream(true);
             orbdProcess = pb.start();
-            Thread.sleep(2000);
-            if (orbdProcess.isAlive()) { System.out.println("✓"); } else { throw new Exception("ORBD failed to start."); }
-        } catch (Exception e) {
-            System.out.println("✗");
-            System.err.println("Warning: Could not start ORBD automatically. Please start it manually.");
+        } catch (IOException e) {
+            throw new Exception("Could not start ORBD automatically. Please start it manually.");
         }
     }
 
+    /**
+     * TempsImpl.main blocks in orb.run(), so the server gets its own thread.
+     */
     private static void startCORBAServer() {
-        System.out.print("Starting CORBA Server... ");
         corbaServerThread = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -500,100 +1110,13 @@ public class WebServer {
         });
         corbaServerThread.setDaemon(true);
         corbaServerThread.start();
-        try { Thread.sleep(3000); System.out.println("✓"); } catch (InterruptedException e) { System.out.println("✗"); }
-    }
-
-    private static void startRMIServer() {
-        System.out.print("Starting RMI Server... ");
-        rmiServerThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try { rmi.AppareilImpl.main(new String[]{}); } catch (Exception e) { System.err.println("RMI Server error: " + e.getMessage()); }
-            }
-        });
-        rmiServerThread.setDaemon(true);
-        rmiServerThread.start();
-        try { Thread.sleep(3000); System.out.println("✓"); } catch (InterruptedException e) { System.out.println("✗"); }
     }
 
-    private static void initCORBA(String[] args) {
-        System.out.print("Connecting to CORBA services... ");
+    private static boolean isRMIBound() {
         try {
-            orb = ORB.init(new String[]{"-ORBInitialPort", String.valueOf(CORBA_PORT), "-ORBInitialHost", "127.0.0.1"}, null);
-            org.omg.CORBA.Object objRef = orb.resolve_initial_references("NameService");
-            NamingContextExt ncRef = NamingContextExtHelper.narrow(objRef);
-            tempsService = TempsHelper.narrow(ncRef.resolve_str("TempsService"));
-            System.out.println("✓");
+            return LocateRegistry.getRegistry(RMI_PORT).lookup("AppareilService") != null;
         } catch (Exception e) {
-            System.out.println("✗");
-            System.err.println("Warning: CORBA connection failed. Will retry automatically.");
-        }
-    }
-
-    /* ------------------- ML Integration (unchanged) ------------------- */
-
-    private static String callMLPrediction(int heure, int jour, int weekend) {
-        String pythonExecutablePath = "C:\\Users\\Ahmed\\.conda\\envs\\AhmedMBarekMLTP\\python.exe";
-        if (new File(pythonExecutablePath).exists()) {
-            String result = tryPythonCommand(pythonExecutablePath, heure, jour, weekend);
-            if (result != null) return result;
-        }
-        String result = tryPythonCommand("python3", heure, jour, weekend);
-        if (result != null) return result;
-        result = tryPythonCommand("python", heure, jour, weekend);
-        if (result != null) return result;
-        System.err.println("Warning: Python script execution failed. Falling back to Java simulation.");
-        return simulatePrediction(heure, jour, weekend);
-    }
-
-    private static String tryPythonCommand(String command, int heure, int jour, int weekend) {
-        try {
-            String projectDir = System.getProperty("user.dir");
-            String scriptPath = new File(projectDir, "ml/predict_ml.py").getAbsolutePath();
-            ProcessBuilder pb = new ProcessBuilder(command, scriptPath, String.valueOf(heure), String.valueOf(jour), String.valueOf(weekend));
-            pb.redirectErrorStream(true);
-            Process p = pb.start();
-            StringBuilder output = new StringBuilder();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                output.append(line).append(System.lineSeparator());
-            }
-            reader.close();
-            if (!p.waitFor(5, TimeUnit.SECONDS)) { p.destroyForcibly(); return null; }
-            if (p.exitValue() != 0) { return null; }
-            return output.toString();
-        } catch (IOException | InterruptedException e) {
-            return null;
-        }
-    }
-
-    private static String simulatePrediction(int heure, int jour, int weekend) {
-        double base = 35.0;
-        if (0 <= heure && heure < 6) base -= 10;
-        else if (6 <= heure && heure < 9) base += 15;
-        else if (9 <= heure && heure < 17) base += 5;
-        else if (17 <= heure && heure < 22) base += 25;
-        if (weekend == 1 && 9 <= heure && heure < 17) base += 10;
-        base += (jour % 3) * 2;
-        return "Predicted energy consumption: " + String.format("%.1f", base) + " kWh";
-    }
-
-    private static double parsePrediction(String output) {
-        try {
-            String[] lines = output.split(System.lineSeparator());
-            for (int i = 0; i < lines.length; i++) {
-                String line = lines[i];
-                if (line.contains("Predicted energy consumption:")) {
-                    String num = line.replaceAll("[^0-9.]", "");
-                    if (num.length() > 0) {
-                        return Double.parseDouble(num);
-                    }
-                }
-            }
-            return 45.0;
-        } catch (Exception e) {
-            return 45.0;
+            return false;
         }
     }
 
@@ -609,6 +1132,23 @@ public class WebServer {
         return buffer.toByteArray();
     }
 
+    private static Map<String, String> parseQuery(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<String, String>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null || query.isEmpty()) return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            try {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            } catch (UnsupportedEncodingException ignored) {
+                // UTF-8 is always supported
+            }
+        }
+        return params;
+    }
+
     private static void setCORS(HttpExchange exchange) {
         exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
         exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
@@ -616,8 +1156,80 @@ public class WebServer {
     }
 
     private static void sendJSON(HttpExchange exchange, String json) throws IOException {
-        exchange.getResponseHeaders().add("Content-Type", "application/json");
-        byte[] response = json.getBytes(StandardCharsets.UTF_8);
+        send(exchange, 200, "application/json", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a body, gzipped when the client accepts it and it is large
+     * enough to gain from it.
+     */
+    private static void send(HttpExchange exchange, int code, String contentType, byte[] response) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Content-Type", contentType);
+        headers.add("Vary", "Accept-Encoding");
+        if (response.length >= ResponseCache.MIN_GZIP_BYTES && acceptsGzip(exchange)) {
+            headers.add("Content-Encoding", "gzip");
+            response = ResponseCache.gzip(response);
+        }
+        exchange.sendResponseHeaders(code, response.length);
+        OutputStream os = exchange.getResponseBody();
+        try { os.write(response); } finally { os.close(); }
+    }
+
+    /**
+     * True when Accept-Encoding lists gzip (or *) without q=0.
+     */
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accepted == null) return false;
+        for (String coding : accepted.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) continue;
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].replace(" ", "");
+                if (param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?")) refused = true;
+            }
+            return !refused;
+        }
+        return false;
+    }
+
+    /**
+     * Answers 304 when the client's If-None-Match holds this ETag.
+     */
+    private static boolean notModified(HttpExchange exchange, String etag) throws IOException {
+        String match = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (match == null) return false;
+        boolean matched = false;
+        for (String candidate : match.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || tag.equals(etag) || ("W/" + tag).equals(etag)) matched = true;
+        }
+        if (!matched) return false;
+        exchange.getResponseHeaders().add("ETag", etag);
+        exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return true;
+    }
+
+    /**
+     * Sends a cached body, gzipped when the client accepts it. "no-cache"
+     * makes browsers revalidate with If-None-Match on every poll.
+     */
+    private static void sendCached(HttpExchange exchange, ResponseCache.Entry entry) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Content-Type", entry.contentType);
+        headers.add("ETag", entry.etag);
+        headers.add("Cache-Control", "no-cache");
+        headers.add("Vary", "Accept-Encoding");
+        byte[] response = entry.plain;
+        if (entry.gzipped != null && acceptsGzip(exchange)) {
+            headers.add("Content-Encoding", "gzip");
+            response = entry.gzipped;
+        }
         exchange.sendResponseHeaders(200, response.length);
         OutputStream os = exchange.getResponseBody();
         try { os.write(response); } finally { os.close(); }
@@ -626,19 +1238,31 @@ public class WebServer {
     private static void sendError(HttpExchange exchange, String message) throws IOException {
         JSONObject error = new JSONObject();
         error.put("error", message);
-        exchange.getResponseHeaders().add("Content-Type", "application/json");
-        byte[] response = error.toString().getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(500, response.length);
-        OutputStream os = exchange.getResponseBody();
-        try { os.write(response); } finally { os.close(); }
+        send(exchange, 500, "application/json", error.toString().getBytes(StandardCharsets.UTF_8));
     }
 
-    private static boolean checkRMI() {
-        try {
-            return Naming.lookup("rmi://localhost:" + RMI_PORT + "/AppareilService") != null;
-        } catch (Exception e) {
-            return false;
+    /**
+     * The dashboard page, read and compressed once.
+     */
+    private static ResponseCache.Entry dashboardPage() throws IOException {
+        ResponseCache.Entry page = dashboardPage;
+        if (page == null) {
+            synchronized (WebServer.class) {
+                page = dashboardPage;
+                if (page == null) {
+                    final byte[] html = getDashboardHTML().getBytes(StandardCharsets.UTF_8);
+                    page = ResponseCache.build(ResponseCache.etag("dashboard", Arrays.hashCode(html)), 0, "text/html",
+                            new ResponseCache.Body() {
+                                @Override
+                                public void write(OutputStream os) throws IOException {
+                                    os.write(html);
+                                }
+                            });
+                    dashboardPage = page;
+                }
+            }
         }
+        return page;
     }
 
     private static String getDashboardHTML() {